@@ -0,0 +1,77 @@
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * builds the containers the benchmarks run against. Contents are generated from a 
+ * fixed seed, so every run, and every fork, measures the same layout.
+ */
+final class BenchmarkFiles {
+	
+	static final long SEED = 0x4D464231L;
+
+	private BenchmarkFiles() {
+	}
+	
+	static File createTempFile() throws IOException {
+		File file = File.createTempFile("multifile-bench", ".mff");
+		file.delete();
+		return file;
+	}
+	
+	static void delete(File file) {
+		if (file != null) {
+			file.delete();
+			new File(file.getPath() + ".journal").delete();
+		}
+	}
+	
+	static String streamName(int i) {
+		return "stream" + i;
+	}
+	
+	/**
+	 * writes the given number of streams of the given size, in one batch
+	 */
+	static void addStreams(MultiFile multiFile, int streams, int streamSize) throws IOException {
+		byte[] data = randomData(streamSize);
+		MultiFileBatch batch = multiFile.beginBatch();
+		for (int i = 0; i < streams; i++) {
+			OutputStream os = batch.getWriteStream(streamName(i));
+			os.write(data);
+			os.close();
+		}
+		batch.commit();
+	}
+	
+	/**
+	 * frees the blocks of deleted and replaced streams now, rather than when the space 
+	 * is next needed, the same way compaction does
+	 */
+	static void reclaim(MultiFile multiFile) throws IOException {
+		multiFile.store.beginUpdate();
+		try {
+			multiFile.allocator.reclaim();
+		} finally {
+			multiFile.store.endUpdate(true);
+		}
+	}
+	
+	static void writeStream(MultiFile multiFile, String streamName, long length, int bufferSize) throws IOException {
+		byte[] data = randomData(bufferSize);
+		OutputStream os = multiFile.getWriteStream(streamName);
+		for (long written = 0; written < length; written += bufferSize) {
+			os.write(data, 0, (int) Math.min(bufferSize, length - written));
+		}
+		os.close();
+	}
+	
+	static byte[] randomData(int size) {
+		byte[] data = new byte[size];
+		new Random(SEED).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,72 @@
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * deletes a stream whose data is scattered over the given number of extents, so that
+ * its stream block continues through a long chain of further blocks. The stream is 
+ * written into the holes left by deleting every other one of many small streams, 
+ * and is rebuilt before each measurement, as deleting it is a one shot operation.
+ * <p>
+ * Deleting only queues the stream's blocks to be freed later, so the measurement 
+ * also reclaims them, walking the chain and returning every extent to the free list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = 1)
+@Measurement(iterations = 50, batchSize = 1)
+@Fork(2)
+public class DeleteBenchmark {
+
+	@Param({ "1", "100", "10000" })
+	public int extents;
+	
+	private File file;
+	private MultiFile multiFile;
+	
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		file = BenchmarkFiles.createTempFile();
+		multiFile = new MultiFile(file);
+		int blockSize = MultiFileOptions.DEFAULT_BLOCKSIZE;
+		if (extents > 1) {
+			BenchmarkFiles.addStreams(multiFile, 2 * extents, blockSize);
+			MultiFileBatch batch = multiFile.beginBatch();
+			for (int i = 0; i < (2 * extents); i += 2) {
+				batch.deleteStream(BenchmarkFiles.streamName(i));
+			}
+			batch.commit();
+			BenchmarkFiles.reclaim(multiFile);
+		}
+		BenchmarkFiles.writeStream(multiFile, "chain", 2L * extents * blockSize, blockSize);
+	}
+	
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		multiFile.close();
+		BenchmarkFiles.delete(file);
+	}
+	
+	@Benchmark
+	public void deleteStream() throws IOException {
+		multiFile.deleteStream("chain");
+		BenchmarkFiles.reclaim(multiFile);
+	}
+}
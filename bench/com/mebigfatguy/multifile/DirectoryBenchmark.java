@@ -0,0 +1,82 @@
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the latency of opening streams, for reading and for rewriting, against the number
+ * of streams in the directory. Streams are visited in a fixed order that strides 
+ * through the directory, rather than hitting one bucket over and over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class DirectoryBenchmark {
+
+	private static final int STRIDE = 7919;
+	
+	@Param({ "100", "10000", "100000" })
+	public int streams;
+	
+	private File file;
+	private MultiFile multiFile;
+	private byte[] data;
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = BenchmarkFiles.createTempFile();
+		multiFile = new MultiFile(file);
+		BenchmarkFiles.addStreams(multiFile, streams, 1024);
+		data = BenchmarkFiles.randomData(1024);
+		next = 0;
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		multiFile.close();
+		BenchmarkFiles.delete(file);
+	}
+	
+	@Benchmark
+	public int getReadStream() throws IOException {
+		InputStream is = multiFile.getReadStream(nextStreamName());
+		try {
+			return is.read();
+		} finally {
+			is.close();
+		}
+	}
+	
+	@Benchmark
+	public void getWriteStream() throws IOException {
+		OutputStream os = multiFile.getWriteStream(nextStreamName());
+		os.write(data);
+		os.close();
+	}
+	
+	private String nextStreamName() {
+		next = (next + STRIDE) % streams;
+		return BenchmarkFiles.streamName(next);
+	}
+}
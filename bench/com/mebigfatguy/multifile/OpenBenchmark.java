@@ -0,0 +1,55 @@
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the cost of opening, and closing, a container against the number of streams in it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class OpenBenchmark {
+
+	@Param({ "0", "1000", "100000" })
+	public int streams;
+	
+	private File file;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = BenchmarkFiles.createTempFile();
+		MultiFile multiFile = new MultiFile(file);
+		BenchmarkFiles.addStreams(multiFile, streams, 1024);
+		multiFile.close();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.delete(file);
+	}
+	
+	@Benchmark
+	public void openAndClose() throws IOException {
+		MultiFile multiFile = new MultiFile(file);
+		multiFile.close();
+	}
+}
@@ -0,0 +1,69 @@
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * walks a STREAMSIZE stream by skipping a fixed distance and reading one byte, over 
+ * and over, so each step pays for a skip and a refill of the read buffer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SkipBenchmark {
+
+	private static final long STREAMSIZE = 16L * 1024 * 1024;
+	
+	@Param({ "100", "4096", "1048576" })
+	public int skipSize;
+	
+	private File file;
+	private MultiFile multiFile;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = BenchmarkFiles.createTempFile();
+		multiFile = new MultiFile(file);
+		BenchmarkFiles.writeStream(multiFile, "skip", STREAMSIZE, 65536);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		multiFile.close();
+		BenchmarkFiles.delete(file);
+	}
+	
+	@Benchmark
+	public long skipThrough() throws IOException {
+		InputStream is = multiFile.getReadStream("skip");
+		try {
+			long sum = 0;
+			int b;
+			while ((is.skip(skipSize) > 0) && ((b = is.read()) >= 0)) {
+				sum += b;
+			}
+			return sum;
+		} finally {
+			is.close();
+		}
+	}
+}
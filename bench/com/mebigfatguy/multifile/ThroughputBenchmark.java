@@ -0,0 +1,102 @@
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * sequential reads and writes of a STREAMSIZE stream, through buffers of various 
+ * sizes. Each operation moves the whole stream, so throughput is STREAMSIZE divided 
+ * by the reported time. Reads are measured with and without read-ahead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class ThroughputBenchmark {
+
+	private static final long STREAMSIZE = 32L * 1024 * 1024;
+	
+	@Param({ "1", "512", "8192", "65536" })
+	public int bufferSize;
+	
+	@Param({ "0", "8388608" })
+	public int readAhead;
+	
+	private File file;
+	private MultiFile multiFile;
+	private byte[] buffer;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = BenchmarkFiles.createTempFile();
+		MultiFileOptions options = new MultiFileOptions();
+		options.setReadAhead(readAhead);
+		multiFile = new MultiFile(file, options);
+		BenchmarkFiles.writeStream(multiFile, "read", STREAMSIZE, 65536);
+		buffer = BenchmarkFiles.randomData(bufferSize);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		multiFile.close();
+		BenchmarkFiles.delete(file);
+	}
+	
+	@Benchmark
+	public long read() throws IOException {
+		InputStream is = multiFile.getReadStream("read");
+		try {
+			long total = 0;
+			if (bufferSize == 1) {
+				while (is.read() >= 0) {
+					total++;
+				}
+			} else {
+				int len;
+				while ((len = is.read(buffer)) >= 0) {
+					total += len;
+				}
+			}
+			return total;
+		} finally {
+			is.close();
+		}
+	}
+	
+	@Benchmark
+	public void write() throws IOException {
+		OutputStream os = multiFile.getWriteStream("write");
+		try {
+			if (bufferSize == 1) {
+				for (long written = 0; written < STREAMSIZE; written++) {
+					os.write((int) written);
+				}
+			} else {
+				for (long written = 0; written < STREAMSIZE; written += bufferSize) {
+					os.write(buffer);
+				}
+			}
+		} finally {
+			os.close();
+		}
+	}
+}
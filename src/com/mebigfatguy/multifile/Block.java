@@ -18,10 +18,9 @@
 package com.mebigfatguy.multifile;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 public interface Block {
-	void write(RandomAccessFile raFile) throws IOException;
-	void read(RandomAccessFile raFile) throws IOException;
+	void write(BlockStore store) throws IOException;
+	void read(BlockStore store) throws IOException;
 	BlockHeader getHeader();
 }
@@ -18,7 +18,6 @@
 package com.mebigfatguy.multifile;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 class BlockHeader {
 	
@@ -60,17 +59,23 @@ class BlockHeader {
 		nextBlock = offset;
 	}
 	
-	public void read(RandomAccessFile raFile) throws IOException {
-		int ordType = raFile.readShort();
-		type = BlockType.values()[ordType];
-		size = raFile.readInt();
-		nextBlock = raFile.readLong();
+	public void read(BlockStore store, long offset) throws IOException {
+		int ordType = store.readShort(offset);
+		BlockType[] types = BlockType.values();
+		if ((ordType < 0) || (ordType >= types.length)) {
+			throw new IOException("Unknown block type " + ordType + " at " + offset);
+		}
+		type = types[ordType];
+		size = store.readInt(offset + 2);
+		nextBlock = store.readLong(offset + 6);
+		store.getMetrics().headerRead();
 	}
 	
-	public void write(RandomAccessFile raFile) throws IOException {
-		raFile.writeShort(type.ordinal());
-		raFile.writeInt(size);
-		raFile.writeLong(nextBlock);
+	public void write(BlockStore store, long offset) throws IOException {
+		store.writeShort(offset, type.ordinal());
+		store.writeInt(offset + 2, size);
+		store.writeLong(offset + 6, nextBlock);
+		store.getMetrics().headerWritten();
 	}
 	
 	public String toString() {
@@ -0,0 +1,473 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the storage backend of a MultiFile. The container is memory mapped in segments,
+ * so that header and payload access are plain memory reads and writes rather than
+ * a seek plus a system call per field. The mapping is grown in large chunks ahead
+ * of the logical length of the container, and the file is trimmed back to the
+ * logical length on close.
+ * <p>
+ * Reads are absolute, each one goes to the mapped segment for its position and no 
+ * file pointer or buffer position is shared, so any number of threads may read at 
+ * once without locking. The segment array is only ever replaced, never changed in 
+ * place, so a reader always sees a complete mapping, either the one before or the 
+ * one after the container grows.
+ * <p>
+ * Writers to separate parts of the container do not need to coordinate either; only
+ * changing the length, and with it perhaps the mapping, is synchronized.
+ * <p>
+ * Metadata and stream data are accessed through separate methods, so that when a 
+ * journal is attached, metadata goes through its shadow blocks while stream data is 
+ * still read and written in place.
+ * <p>
+ * Stream data that is about to be read can be requested ahead of time. A small pool 
+ * of daemon threads, shared by all stores, touches each page of it in the mapping, 
+ * so that the page faults, and any disk reads behind them, are taken in the 
+ * background rather than by the reader, a page at a time.
+ */
+class BlockStore {
+
+	private static final int SEGMENTSHIFT = 30;
+	private static final long SEGMENTSIZE = 1L << SEGMENTSHIFT;
+	private static final long MINGROWSIZE = 1L << 16;
+	private static final long MAXGROWSIZE = 1L << 26;
+	private static final int READAHEADTHREADS = 4;
+	private static final int PAGESIZE = 4096;
+
+	private static final ThreadPoolExecutor READAHEAD_POOL = createReadAheadPool();
+
+	/** where read-ahead leaves the bytes it touched, so the loads can not be optimized away */
+	private static int readAheadSink;
+
+	private RandomAccessFile raFile;
+	private FileChannel channel;
+	private volatile MappedByteBuffer[] segments;
+	private long mappedLength;
+	private volatile long length;
+	private int blockSize;
+	private volatile Journal journal;
+	private Metrics metrics;
+	private int maxReadAhead;
+
+	public BlockStore(File file) throws IOException {
+		raFile = new RandomAccessFile(file, "rw");
+		channel = raFile.getChannel();
+		length = raFile.length();
+		segments = new MappedByteBuffer[0];
+		mappedLength = 0;
+		blockSize = MultiFileOptions.DEFAULT_BLOCKSIZE;
+		metrics = new Metrics(false);
+		maxReadAhead = 0;
+		map(length);
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public void setBlockSize(int size) {
+		blockSize = size;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(Metrics storeMetrics) {
+		metrics = storeMetrics;
+	}
+
+	/**
+	 * @return the most bytes an input stream should request ahead of its reads
+	 */
+	public int getMaxReadAhead() {
+		return maxReadAhead;
+	}
+
+	public void setMaxReadAhead(int bytes) {
+		maxReadAhead = bytes;
+	}
+
+	public long length() throws IOException {
+		checkOpen();
+		return length;
+	}
+
+	public synchronized void setLength(long newLength) throws IOException {
+		checkOpen();
+		if (newLength > mappedLength) {
+			map(newLength);
+		}
+		length = newLength;
+		metrics.lengthChanged();
+	}
+
+	public void ensureLength(long minLength) throws IOException {
+		if (length() < minLength) {
+			synchronized (this) {
+				if (length < minLength) {
+					setLength(minLength);
+				}
+			}
+		}
+	}
+
+	public short readShort(long pos) throws IOException {
+		ByteBuffer shadow = findShadow(pos);
+		if (shadow != null) {
+			return shadow.getShort(blockIndex(pos));
+		}
+		return segment(pos).getShort(index(pos));
+	}
+
+	public int readInt(long pos) throws IOException {
+		ByteBuffer shadow = findShadow(pos);
+		if (shadow != null) {
+			return shadow.getInt(blockIndex(pos));
+		}
+		return segment(pos).getInt(index(pos));
+	}
+
+	public long readLong(long pos) throws IOException {
+		ByteBuffer shadow = findShadow(pos);
+		if (shadow != null) {
+			return shadow.getLong(blockIndex(pos));
+		}
+		return segment(pos).getLong(index(pos));
+	}
+
+	public void writeShort(long pos, int value) throws IOException {
+		ensureLength(pos + 2);
+		ByteBuffer shadow = getShadow(pos);
+		if (shadow != null) {
+			shadow.putShort(blockIndex(pos), (short) value);
+		} else {
+			segment(pos).putShort(index(pos), (short) value);
+		}
+	}
+
+	public void writeInt(long pos, int value) throws IOException {
+		ensureLength(pos + 4);
+		ByteBuffer shadow = getShadow(pos);
+		if (shadow != null) {
+			shadow.putInt(blockIndex(pos), value);
+		} else {
+			segment(pos).putInt(index(pos), value);
+		}
+	}
+
+	public void writeLong(long pos, long value) throws IOException {
+		ensureLength(pos + 8);
+		ByteBuffer shadow = getShadow(pos);
+		if (shadow != null) {
+			shadow.putLong(blockIndex(pos), value);
+		} else {
+			segment(pos).putLong(index(pos), value);
+		}
+	}
+
+	/**
+	 * reads metadata, from the journal's shadow blocks where there are any
+	 */
+	public void read(long pos, byte[] data, int offset, int len) throws IOException {
+		Journal current = journal;
+		if (current == null) {
+			readDirect(pos, data, offset, len);
+			return;
+		}
+		
+		while (len > 0) {
+			int chunk = Math.min(len, blockSize - blockIndex(pos));
+			ByteBuffer shadow = current.findShadow(pos - blockIndex(pos));
+			if (shadow != null) {
+				System.arraycopy(shadow.array(), blockIndex(pos), data, offset, chunk);
+			} else {
+				readDirect(pos, data, offset, chunk);
+			}
+			pos += chunk;
+			offset += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * writes metadata, to the journal's shadow blocks when a journal is attached
+	 */
+	public void write(long pos, byte[] data, int offset, int len) throws IOException {
+		ensureLength(pos + len);
+		Journal current = journal;
+		if (current == null) {
+			writeDirect(pos, data, offset, len);
+			return;
+		}
+		
+		while (len > 0) {
+			int chunk = Math.min(len, blockSize - blockIndex(pos));
+			ByteBuffer shadow = current.getShadow(pos - blockIndex(pos));
+			System.arraycopy(data, offset, shadow.array(), blockIndex(pos), chunk);
+			pos += chunk;
+			offset += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * reads stream data, which is never journaled
+	 */
+	public void readData(long pos, byte[] data, int offset, int len) throws IOException {
+		readDirect(pos, data, offset, len);
+		metrics.dataRead(len);
+	}
+
+	/**
+	 * writes stream data in place, bypassing the journal
+	 */
+	public void writeData(long pos, byte[] data, int offset, int len) throws IOException {
+		prepareData(pos, len);
+		writeDirect(pos, data, offset, len);
+		metrics.dataWritten(len);
+	}
+
+	/**
+	 * sends stream data straight from the file to a channel, without copying it through
+	 * the heap where the platform allows
+	 */
+	public void transferData(long pos, long len, WritableByteChannel target) throws IOException {
+		checkOpen();
+		FileChannel current = channel;
+		long remaining = len;
+		while (remaining > 0) {
+			long count = current.transferTo(pos, remaining, target);
+			if (count <= 0) {
+				throw new IOException("Transfer stalled at " + pos + " with " + remaining + " bytes left");
+			}
+			pos += count;
+			remaining -= count;
+		}
+		metrics.dataRead(len);
+	}
+
+	/**
+	 * faults a range of stream data into the mapping in the background, so that 
+	 * reading it afterwards does not have to wait on the disk. Should the store be 
+	 * closed meanwhile, the rest of the range is skipped.
+	 */
+	public void readAhead(final long pos, final long len) {
+		if ((segments == null) || (len <= 0)) {
+			return;
+		}
+		
+		metrics.readAhead(len);
+		READAHEAD_POOL.execute(new Runnable() {
+			@Override
+			public void run() {
+				int touched = 0;
+				try {
+					for (long pagePos = pos - (pos % PAGESIZE); pagePos < (pos + len); pagePos += PAGESIZE) {
+						touched += segment(pagePos).get(index(pagePos));
+					}
+				} catch (IOException ioe) {
+					// the store was closed, nothing left to read ahead for
+				}
+				readAheadSink = touched;
+			}
+		});
+	}
+
+	/**
+	 * readies a range for stream data written around the store, such as through an 
+	 * asynchronous channel, growing the container to cover it and dropping any 
+	 * journaled metadata it held
+	 */
+	public void prepareData(long pos, long len) throws IOException {
+		ensureLength(pos + len);
+		Journal current = journal;
+		if (current != null) {
+			current.revoke(pos, len);
+		}
+	}
+
+	/**
+	 * attaches a journal, after which metadata writes go through it, or detaches it
+	 */
+	public void setJournal(Journal newJournal) {
+		journal = newJournal;
+	}
+
+	/**
+	 * starts a group of metadata changes that are to be journaled together
+	 */
+	public void beginUpdate() {
+		Journal current = journal;
+		if (current != null) {
+			current.beginUpdate();
+		}
+	}
+
+	/**
+	 * ends a group of metadata changes
+	 * 
+	 * @param durable whether the changes must be on disk before returning
+	 */
+	public void endUpdate(boolean durable) throws IOException {
+		Journal current = journal;
+		if (current != null) {
+			current.endUpdate(durable);
+		}
+	}
+
+	/**
+	 * writes all changes to the mapping through to the disk
+	 */
+	public void force() throws IOException {
+		MappedByteBuffer[] current = segments;
+		if (current == null) {
+			throw new IOException("MultiFile closed");
+		}
+		long start = metrics.startSync();
+		for (MappedByteBuffer segment : current) {
+			segment.force();
+		}
+		metrics.synced(start);
+	}
+
+	void readDirect(long pos, byte[] data, int offset, int len) throws IOException {
+		while (len > 0) {
+			ByteBuffer bb = segment(pos).duplicate();
+			int index = index(pos);
+			int chunk = Math.min(len, bb.capacity() - index);
+			bb.position(index);
+			bb.get(data, offset, chunk);
+			pos += chunk;
+			offset += chunk;
+			len -= chunk;
+		}
+	}
+
+	void writeDirect(long pos, byte[] data, int offset, int len) throws IOException {
+		ensureLength(pos + len);
+		while (len > 0) {
+			ByteBuffer bb = segment(pos).duplicate();
+			int index = index(pos);
+			int chunk = Math.min(len, bb.capacity() - index);
+			bb.position(index);
+			bb.put(data, offset, chunk);
+			pos += chunk;
+			offset += chunk;
+			len -= chunk;
+		}
+	}
+
+	public void close() throws IOException {
+		checkOpen();
+
+		try {
+			force();
+			segments = null;
+			raFile.setLength(length);
+		} finally {
+			raFile.close();
+			raFile = null;
+			channel = null;
+		}
+	}
+
+	private void map(long minLength) throws IOException {
+		long growSize = Math.min(Math.max(mappedLength, MINGROWSIZE), MAXGROWSIZE);
+		long newLength = Math.max(minLength, mappedLength + growSize);
+		newLength = ((newLength + MINGROWSIZE - 1) / MINGROWSIZE) * MINGROWSIZE;
+
+		int numSegments = (int) ((newLength + SEGMENTSIZE - 1) >>> SEGMENTSHIFT);
+		MappedByteBuffer[] newSegments = new MappedByteBuffer[numSegments];
+		System.arraycopy(segments, 0, newSegments, 0, segments.length);
+
+		int firstRemap = Math.max(0, segments.length - 1);
+		for (int i = firstRemap; i < numSegments; i++) {
+			long start = ((long) i) << SEGMENTSHIFT;
+			long size = Math.min(SEGMENTSIZE, newLength - start);
+			newSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+		}
+
+		segments = newSegments;
+		mappedLength = newLength;
+		metrics.mappingGrown();
+	}
+
+	private ByteBuffer findShadow(long pos) {
+		Journal current = journal;
+		return (current == null) ? null : current.findShadow(pos - blockIndex(pos));
+	}
+
+	private ByteBuffer getShadow(long pos) throws IOException {
+		Journal current = journal;
+		return (current == null) ? null : current.getShadow(pos - blockIndex(pos));
+	}
+
+	private int blockIndex(long pos) {
+		return (int) (pos % blockSize);
+	}
+
+	private MappedByteBuffer segment(long pos) throws IOException {
+		MappedByteBuffer[] current = segments;
+		if (current == null) {
+			throw new IOException("MultiFile closed");
+		}
+		return current[(int) (pos >>> SEGMENTSHIFT)];
+	}
+
+	private static ThreadPoolExecutor createReadAheadPool() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(READAHEADTHREADS, READAHEADTHREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MultiFile read-ahead");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static int index(long pos) {
+		return (int) (pos & (SEGMENTSIZE - 1));
+	}
+
+	private void checkOpen() throws IOException {
+		if (segments == null) {
+			throw new IOException("MultiFile closed");
+		}
+	}
+
+	public String toString() {
+		return "BlockStore[LENGTH: " + length + " MAPPED: " + mappedLength + " BLOCKSIZE: " + blockSize + "]";
+	}
+}
@@ -20,5 +20,12 @@ package com.mebigfatguy.multifile;
 enum BlockType { 
 	DIRECTORY, 
 	FILE, 
-	FREE 
+	FREE,
+	SUPER,
+	STREAM,
+	FREELIST,
+	INDEX,
+	BUCKET,
+	COMPRESSED,
+	SHARED
 }
\ No newline at end of file
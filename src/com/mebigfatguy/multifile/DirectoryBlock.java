@@ -17,93 +17,50 @@
  */
 package com.mebigfatguy.multifile;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-public class DirectoryBlock extends AbstractBlock {
+/**
+ * a block of the linked list of directory blocks used by containers before version 4.
+ * These are only read now, when such a container is upgraded to a hash index, so 
+ * unlike the blocks still in use, they can not be written.
+ */
+public class DirectoryBlock {
 
 	long offset;
+	private BlockHeader header;
 	private Map<String, Long> streamOffsets = new HashMap<String, Long>();
 	
 	public DirectoryBlock(long blockOffset) {
-		super(new BlockHeader(BlockType.DIRECTORY, 0, 0));
+		header = new BlockHeader(BlockType.DIRECTORY, 0, 0);
 		offset = blockOffset;
 	}
 	
-	public void write(RandomAccessFile raFile) throws IOException {
-		
-		long startOffset = offset + BlockHeader.BLOCKHEADERSIZE;
-		raFile.seek(startOffset);
-		for (Map.Entry<String, Long> entry : streamOffsets.entrySet()) {
-			raFile.writeUTF(entry.getKey());
-			raFile.writeLong(entry.getValue().longValue());
-		}
-		int size = (int)(raFile.getFilePointer() - startOffset); 
-		
-		raFile.seek(offset);
-		header.setSize(size);
-		header.write(raFile);
-		
-		if (raFile.getFilePointer() == raFile.length()) {
-			raFile.setLength(((offset + MultiFile.BLOCKSIZE) / MultiFile.BLOCKSIZE) * MultiFile.BLOCKSIZE);
-		}
-	}
-	
-	public void read(RandomAccessFile raFile) throws IOException {
-		raFile.seek(offset);
+	public void read(BlockStore store) throws IOException {
 		header = new BlockHeader();
-		header.read(raFile);
+		header.read(store, offset);
 		streamOffsets.clear();
-		int length = header.getSize();
-		long end = offset + BlockHeader.BLOCKHEADERSIZE + length;
+		byte[] data = new byte[header.getSize()];
+		store.read(offset + BlockHeader.BLOCKHEADERSIZE, data, 0, data.length);
 		
-		while (raFile.getFilePointer() < end) {
-			streamOffsets.put(raFile.readUTF(), Long.valueOf(raFile.readLong()));
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		while (dis.available() > 0) {
+			streamOffsets.put(dis.readUTF(), Long.valueOf(dis.readLong()));
 		}
 	}
 	
 	public long getNextOffset() {
 		return header.getNextBlock();
 	}
-	public void setNextOffset(long offset) {
-		header.setNextBlock(offset);
-	}
 	public Collection<String> getStreamNames() {
 		return Collections.unmodifiableSet(streamOffsets.keySet());
 	}
 	
-	public boolean addStream(String streamName, long streamOffset) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		dos.writeUTF(streamName);
-		dos.writeLong(streamOffset);
-		dos.flush();
-		int streamEntryLength = baos.toByteArray().length;
-		int newBlockLength = header.getSize() + streamEntryLength;
-		if (newBlockLength < MultiFile.BLOCKSIZE - BlockHeader.BLOCKHEADERSIZE) {
-			header.setSize(newBlockLength);
-			streamOffsets.put(streamName, Long.valueOf(streamOffset));
-			return true;
-		}
-		
-		return false;
-	}
-	
-	public Long removeStream(String streamName) {
-		Long offset = streamOffsets.get(streamName);
-		if (offset != null) {
-			streamOffsets.remove(streamName);
-		}
-		
-		return offset;
-	}
-	
 	public Long getStreamOffset(String streamName) {
 		return streamOffsets.get(streamName);
 	}
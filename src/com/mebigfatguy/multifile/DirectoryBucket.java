@@ -0,0 +1,248 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * one bucket of the directory's hash index, holding the names and entries of all 
+ * streams whose hash ends in the same depth bits. A bucket normally fits in one 
+ * block; only when its names can not be told apart by further hash bits does it spill 
+ * into overflow blocks linked through the header.
+ */
+public class DirectoryBucket extends AbstractBlock {
+	
+	long offset;
+	private int depth;
+	private Map<String, DirectoryEntry> entries = new LinkedHashMap<String, DirectoryEntry>();
+	private List<Long> overflows = new ArrayList<Long>();
+	
+	public DirectoryBucket(long blockOffset, int bucketDepth) {
+		super(new BlockHeader(BlockType.BUCKET, 0, 0));
+		offset = blockOffset;
+		depth = bucketDepth;
+	}
+	
+	/**
+	 * @return a copy of the bucket that can be changed without affecting this one
+	 */
+	public DirectoryBucket copy() {
+		DirectoryBucket bucket = new DirectoryBucket(offset, depth);
+		bucket.header = new BlockHeader(BlockType.BUCKET, header.getSize(), header.getNextBlock());
+		bucket.entries.putAll(entries);
+		bucket.overflows.addAll(overflows);
+		return bucket;
+	}
+	
+	@Override
+	public void write(BlockStore store) throws IOException {
+		int blockSize = store.getBlockSize();
+		List<List<String>> blocks = pack(blockSize);
+		if (blocks.size() != overflows.size() + 1) {
+			throw new IOException("Directory bucket overflow blocks not allocated: " + this);
+		}
+		
+		for (int b = 0; b < blocks.size(); b++) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			if (b == 0) {
+				dos.writeInt(depth);
+			}
+			for (String streamName : blocks.get(b)) {
+				dos.writeUTF(streamName);
+				entries.get(streamName).write(dos);
+			}
+			dos.flush();
+			byte[] data = baos.toByteArray();
+			
+			long blockOffset = (b == 0) ? offset : overflows.get(b - 1).longValue();
+			long nextOffset = (b < overflows.size()) ? overflows.get(b).longValue() : 0;
+			BlockHeader blockHeader = (b == 0) ? header : new BlockHeader(BlockType.BUCKET, 0, 0);
+			blockHeader.setSize(data.length);
+			blockHeader.setNextBlock(nextOffset);
+			store.write(blockOffset + BlockHeader.BLOCKHEADERSIZE, data, 0, data.length);
+			blockHeader.write(store, blockOffset);
+			store.ensureLength(blockOffset + blockSize);
+		}
+	}
+	
+	@Override
+	public void read(BlockStore store) throws IOException {
+		entries.clear();
+		overflows.clear();
+		
+		header = new BlockHeader();
+		long blockOffset = offset;
+		BlockHeader blockHeader = header;
+		while (true) {
+			blockHeader.read(store, blockOffset);
+			store.getMetrics().directoryBlockRead();
+			if (blockHeader.getBlockType() != BlockType.BUCKET) {
+				throw new IOException("Expected a directory bucket at " + blockOffset + ": " + blockHeader);
+			}
+			
+			byte[] data = new byte[blockHeader.getSize()];
+			store.read(blockOffset + BlockHeader.BLOCKHEADERSIZE, data, 0, data.length);
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+			if (blockOffset == offset) {
+				depth = dis.readInt();
+			}
+			while (dis.available() > 0) {
+				String streamName = dis.readUTF();
+				entries.put(streamName, DirectoryEntry.read(dis));
+			}
+			
+			blockOffset = blockHeader.getNextBlock();
+			if (blockOffset == 0) {
+				break;
+			}
+			overflows.add(Long.valueOf(blockOffset));
+			blockHeader = new BlockHeader();
+		}
+	}
+	
+	public int getDepth() {
+		return depth;
+	}
+	
+	public void setDepth(int bucketDepth) {
+		depth = bucketDepth;
+	}
+	
+	public Collection<String> getStreamNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	public DirectoryEntry getEntry(String streamName) {
+		return entries.get(streamName);
+	}
+	
+	public DirectoryEntry putEntry(String streamName, DirectoryEntry entry) {
+		return entries.put(streamName, entry);
+	}
+	
+	public DirectoryEntry removeEntry(String streamName) {
+		return entries.remove(streamName);
+	}
+	
+	/**
+	 * @return the number of blocks the bucket's entries take up
+	 */
+	public int getBlocksNeeded(int blockSize) {
+		return pack(blockSize).size();
+	}
+	
+	/**
+	 * grows or shrinks the chain of overflow blocks to what the entries need
+	 */
+	public void allocateOverflows(ExtentAllocator allocator, int blockSize) throws IOException {
+		int needed = getBlocksNeeded(blockSize) - 1;
+		while (overflows.size() < needed) {
+			overflows.add(Long.valueOf(allocator.allocateBlock()));
+		}
+		while (overflows.size() > needed) {
+			allocator.freeBlock(overflows.remove(overflows.size() - 1).longValue());
+		}
+	}
+	
+	/**
+	 * returns the bucket's blocks to free space
+	 */
+	public void free(ExtentAllocator allocator) throws IOException {
+		for (Long overflow : overflows) {
+			allocator.freeBlock(overflow.longValue());
+		}
+		allocator.freeBlock(offset);
+	}
+	
+	public void markBlocks(BitSet used, int blockSize) {
+		used.set((int) (offset / blockSize));
+		for (Long overflow : overflows) {
+			used.set((int) (overflow.longValue() / blockSize));
+		}
+	}
+	
+	/**
+	 * @return whether an entry fits in an otherwise empty bucket
+	 */
+	public static boolean fits(String streamName, DirectoryEntry entry, int blockSize) {
+		return (getNameSize(streamName) + entry.getSize()) <= (blockSize - BlockHeader.BLOCKHEADERSIZE - 4);
+	}
+	
+	/**
+	 * lays the entries out over blocks, in order, without splitting an entry across blocks
+	 */
+	private List<List<String>> pack(int blockSize) {
+		List<List<String>> blocks = new ArrayList<List<String>>();
+		List<String> block = new ArrayList<String>();
+		blocks.add(block);
+		int available = blockSize - BlockHeader.BLOCKHEADERSIZE - 4;
+		
+		for (Map.Entry<String, DirectoryEntry> entry : entries.entrySet()) {
+			String streamName = entry.getKey();
+			int entrySize = getNameSize(streamName) + entry.getValue().getSize();
+			if (entrySize > available) {
+				block = new ArrayList<String>();
+				blocks.add(block);
+				available = blockSize - BlockHeader.BLOCKHEADERSIZE;
+			}
+			block.add(streamName);
+			available -= entrySize;
+		}
+		
+		return blocks;
+	}
+	
+	/**
+	 * @return the number of bytes a name takes up, in modified UTF-8 as written by writeUTF
+	 */
+	private static int getNameSize(String streamName) {
+		int utfLength = 0;
+		for (int i = 0; i < streamName.length(); i++) {
+			char c = streamName.charAt(i);
+			if ((c >= 0x0001) && (c <= 0x007F)) {
+				utfLength++;
+			} else if (c > 0x07FF) {
+				utfLength += 3;
+			} else {
+				utfLength += 2;
+			}
+		}
+		
+		return 2 + utfLength;
+	}
+	
+	public String toString() {
+		return "DirectoryBucket[OFFSET: " + offset + " DEPTH: " + depth + " ENTRIES: " + entries.size() + " OVERFLOWS: " + overflows.size() + "]";
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * what a directory entry refers to: the stream block of a stream, or, for a stream 
+ * small enough, the stream's data itself, kept inline in the entry. An inline stream 
+ * takes no blocks of its own, and is read along with the bucket that holds it.
+ * <p>
+ * On disk an entry is a long, the stream block offset, or for inline data the negated
+ * data length less one, followed by the data.
+ */
+class DirectoryEntry {
+	
+	private long streamOffset;
+	private byte[] data;
+	
+	private DirectoryEntry(long offset, byte[] inlineData) {
+		streamOffset = offset;
+		data = inlineData;
+	}
+	
+	public static DirectoryEntry forStream(long offset) {
+		return new DirectoryEntry(offset, null);
+	}
+	
+	public static DirectoryEntry forData(byte[] inlineData) {
+		return new DirectoryEntry(-1, inlineData);
+	}
+	
+	/**
+	 * @return the largest stream kept inline in a container of the given block size
+	 */
+	public static int getInlineLimit(int blockSize) {
+		return blockSize / 8;
+	}
+	
+	public boolean isInline() {
+		return data != null;
+	}
+	
+	/**
+	 * @return the offset of the stream block, or -1 for an inline stream
+	 */
+	public long getStreamOffset() {
+		return streamOffset;
+	}
+	
+	/**
+	 * @return the data of an inline stream, or null
+	 */
+	public byte[] getData() {
+		return data;
+	}
+	
+	/**
+	 * @return the number of bytes the entry takes up after its name
+	 */
+	public int getSize() {
+		return 8 + ((data == null) ? 0 : data.length);
+	}
+	
+	public void write(DataOutputStream dos) throws IOException {
+		if (data == null) {
+			dos.writeLong(streamOffset);
+		} else {
+			dos.writeLong(-1L - data.length);
+			dos.write(data);
+		}
+	}
+	
+	public static DirectoryEntry read(DataInputStream dis) throws IOException {
+		long value = dis.readLong();
+		if (value >= 0) {
+			return forStream(value);
+		}
+		
+		byte[] inlineData = new byte[(int) (-1L - value)];
+		dis.readFully(inlineData);
+		return forData(inlineData);
+	}
+	
+	public String toString() {
+		return isInline() ? ("DirectoryEntry[INLINE: " + data.length + "]") : ("DirectoryEntry[OFFSET: " + streamOffset + "]");
+	}
+}
@@ -0,0 +1,635 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * the directory of a container, an extendible hash index from stream names to their
+ * entries, the offsets of their stream blocks or, for small streams, their data. The 
+ * index block records the global depth of the index, and where its table of 2^depth 
+ * bucket offsets lives, in a contiguous run of blocks. A name is looked up by reading 
+ * the table slot picked by the low bits of its hash, and then that one bucket, so 
+ * finding, adding or removing a stream reads a fixed number of blocks however many 
+ * streams there are, and opening a container reads nothing of the directory but the
+ * index block.
+ * <p>
+ * Parsed buckets are kept in a bounded cache of the least recently used ones, split 
+ * by the same stripes as the bucket locks so that it needs no locking of its own. 
+ * Cached buckets are shared by readers, and copied before being changed.
+ * <p>
+ * A bucket that outgrows its block is split on the next bit of the hash, doubling the 
+ * table first if the bucket already uses as many bits as the table does. Buckets are 
+ * not merged again when streams are deleted.
+ * <p>
+ * The table is guarded by a read write lock, and buckets by a set of striped locks. 
+ * Lookups, and changes that stay within one bucket, share the table lock and take only 
+ * their bucket's stripe, so writers of different streams rarely wait on each other. 
+ * Only splitting a bucket, which changes the table, takes the table lock exclusively.
+ */
+class DirectoryIndex extends AbstractBlock {
+	
+	/** the most hash bits the table is indexed by, beyond which buckets overflow instead */
+	static final int MAXDEPTH = 24;
+	
+	private static final int PAYLOADSIZE = 4 + 8 + 8;
+	private static final int COPYSIZE = 1 << 16;
+	private static final int STRIPES = 64;
+	
+	long offset;
+	private BlockStore store;
+	private ExtentAllocator allocator;
+	private int globalDepth;
+	private long tableOffset;
+	private long count;
+	private ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+	private Lock[] bucketLocks;
+	private BucketCache[] caches;
+	
+	/**
+	 * @param cacheSize the most buckets to keep parsed in memory, or 0 to read every 
+	 * bucket from the container each time
+	 */
+	public DirectoryIndex(BlockStore blockStore, ExtentAllocator extentAllocator, long blockOffset, int cacheSize) {
+		super(new BlockHeader(BlockType.INDEX, PAYLOADSIZE, 0));
+		store = blockStore;
+		allocator = extentAllocator;
+		offset = blockOffset;
+		globalDepth = 0;
+		tableOffset = 0;
+		count = 0;
+		bucketLocks = new Lock[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			bucketLocks[i] = new ReentrantLock();
+		}
+		if (cacheSize > 0) {
+			caches = new BucketCache[STRIPES];
+			for (int i = 0; i < STRIPES; i++) {
+				caches[i] = new BucketCache(Math.max(1, cacheSize / STRIPES));
+			}
+		}
+	}
+	
+	@Override
+	public void write(BlockStore blockStore) throws IOException {
+		long pos = offset + BlockHeader.BLOCKHEADERSIZE;
+		blockStore.writeInt(pos, globalDepth);
+		blockStore.writeLong(pos + 4, tableOffset);
+		blockStore.writeLong(pos + 12, count);
+		header.write(blockStore, offset);
+		blockStore.ensureLength(offset + blockStore.getBlockSize());
+	}
+	
+	@Override
+	public void read(BlockStore blockStore) throws IOException {
+		header = new BlockHeader();
+		header.read(blockStore, offset);
+		if (header.getBlockType() != BlockType.INDEX) {
+			throw new IOException("Expected a directory index at " + offset + ": " + header);
+		}
+		
+		long pos = offset + BlockHeader.BLOCKHEADERSIZE;
+		globalDepth = blockStore.readInt(pos);
+		tableOffset = blockStore.readLong(pos + 4);
+		count = blockStore.readLong(pos + 12);
+	}
+	
+	/**
+	 * writes an empty index, with a table of one slot pointing to one empty bucket
+	 */
+	public void create() throws IOException {
+		store.ensureLength(offset + store.getBlockSize());
+		
+		DirectoryBucket bucket = new DirectoryBucket(allocator.allocateBlock(), 0);
+		bucket.write(store);
+		
+		globalDepth = 0;
+		count = 0;
+		tableOffset = allocator.allocateContiguous(getTableBlocks(globalDepth)).getOffset();
+		writeTableSlot(0, bucket.offset);
+		write(store);
+	}
+	
+	/**
+	 * @return the number of streams in the directory
+	 */
+	public synchronized long size() {
+		return count;
+	}
+	
+	/**
+	 * @return the named stream's entry, or null if there is no such stream
+	 */
+	public DirectoryEntry get(String streamName) throws IOException {
+		store.getMetrics().directoryLookup();
+		tableLock.readLock().lock();
+		try {
+			long bucketOffset = readTableSlot(getSlot(hash(streamName)));
+			Lock bucketLock = getBucketLock(bucketOffset);
+			bucketLock.lock();
+			try {
+				return readBucket(bucketOffset).getEntry(streamName);
+			} finally {
+				bucketLock.unlock();
+			}
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * adds a stream to the directory, or replaces the entry of an existing one
+	 * 
+	 * @return the entry the name had before, or null if it is a new stream
+	 */
+	public DirectoryEntry put(String streamName, DirectoryEntry entry) throws IOException {
+		int blockSize = store.getBlockSize();
+		if (!DirectoryBucket.fits(streamName, entry, blockSize)) {
+			throw new IOException("Stream name too long: " + streamName);
+		}
+		
+		long nameHash = hash(streamName);
+		tableLock.readLock().lock();
+		try {
+			long bucketOffset = readTableSlot(getSlot(nameHash));
+			Lock bucketLock = getBucketLock(bucketOffset);
+			bucketLock.lock();
+			try {
+				DirectoryBucket bucket = readBucketForUpdate(bucketOffset);
+				DirectoryEntry previous = bucket.putEntry(streamName, entry);
+				if ((bucket.getBlocksNeeded(blockSize) == 1) || !canSplit(bucket)) {
+					writeBucket(bucket);
+					if (previous == null) {
+						addCount(1);
+					}
+					return previous;
+				}
+			} finally {
+				bucketLock.unlock();
+			}
+		} finally {
+			tableLock.readLock().unlock();
+		}
+		
+		tableLock.writeLock().lock();
+		try {
+			int slot = getSlot(nameHash);
+			DirectoryBucket bucket = readBucketForUpdate(readTableSlot(slot));
+			DirectoryEntry previous = bucket.putEntry(streamName, entry);
+			if (previous == null) {
+				addCount(1);
+			}
+			storeBucket(bucket, slot & getMask(bucket.getDepth()));
+			return previous;
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * replaces the entry of a stream, but only if it still refers to the expected stream
+	 * block, so that a stream rewritten or deleted in the meantime is left alone
+	 * 
+	 * @return whether the entry was replaced
+	 */
+	public boolean replace(String streamName, long expectedOffset, DirectoryEntry entry) throws IOException {
+		return replace(streamName, DirectoryEntry.forStream(expectedOffset), entry);
+	}
+	
+	/**
+	 * replaces the entry of a stream, but only if it is still the expected one: the same
+	 * stream block, or the same inline data
+	 * 
+	 * @return whether the entry was replaced
+	 */
+	public boolean replace(String streamName, DirectoryEntry expected, DirectoryEntry entry) throws IOException {
+		int blockSize = store.getBlockSize();
+		if (!DirectoryBucket.fits(streamName, entry, blockSize)) {
+			throw new IOException("Stream name too long: " + streamName);
+		}
+		
+		long nameHash = hash(streamName);
+		tableLock.readLock().lock();
+		try {
+			long bucketOffset = readTableSlot(getSlot(nameHash));
+			Lock bucketLock = getBucketLock(bucketOffset);
+			bucketLock.lock();
+			try {
+				DirectoryBucket bucket = readBucketForUpdate(bucketOffset);
+				if (!matches(bucket.getEntry(streamName), expected)) {
+					return false;
+				}
+				bucket.putEntry(streamName, entry);
+				if ((bucket.getBlocksNeeded(blockSize) == 1) || !canSplit(bucket)) {
+					writeBucket(bucket);
+					return true;
+				}
+			} finally {
+				bucketLock.unlock();
+			}
+		} finally {
+			tableLock.readLock().unlock();
+		}
+		
+		tableLock.writeLock().lock();
+		try {
+			int slot = getSlot(nameHash);
+			DirectoryBucket bucket = readBucketForUpdate(readTableSlot(slot));
+			if (!matches(bucket.getEntry(streamName), expected)) {
+				return false;
+			}
+			bucket.putEntry(streamName, entry);
+			storeBucket(bucket, slot & getMask(bucket.getDepth()));
+			return true;
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * removes a stream from the directory
+	 * 
+	 * @return the removed stream's entry, or null if there was no such stream
+	 */
+	public DirectoryEntry remove(String streamName) throws IOException {
+		tableLock.readLock().lock();
+		try {
+			long bucketOffset = readTableSlot(getSlot(hash(streamName)));
+			Lock bucketLock = getBucketLock(bucketOffset);
+			bucketLock.lock();
+			try {
+				DirectoryBucket bucket = readBucketForUpdate(bucketOffset);
+				DirectoryEntry previous = bucket.removeEntry(streamName);
+				if (previous != null) {
+					writeBucket(bucket);
+					addCount(-1);
+				}
+				return previous;
+			} finally {
+				bucketLock.unlock();
+			}
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * applies many changes at once, adding or replacing the entry of each named stream, 
+	 * or removing it when the new entry is null. Changes are grouped by bucket, 
+	 * so each affected bucket is read and written once, however many of the changes 
+	 * fall in it.
+	 * 
+	 * @return the entries that were replaced or removed
+	 */
+	public List<DirectoryEntry> putAll(Map<String, DirectoryEntry> changes) throws IOException {
+		int blockSize = store.getBlockSize();
+		for (Map.Entry<String, DirectoryEntry> change : changes.entrySet()) {
+			if ((change.getValue() != null) && !DirectoryBucket.fits(change.getKey(), change.getValue(), blockSize)) {
+				throw new IOException("Stream name too long: " + change.getKey());
+			}
+		}
+		
+		List<DirectoryEntry> previousEntries = new ArrayList<DirectoryEntry>();
+		tableLock.writeLock().lock();
+		try {
+			Map<Long, List<String>> bucketChanges = new LinkedHashMap<Long, List<String>>();
+			for (String streamName : changes.keySet()) {
+				Long bucketOffset = Long.valueOf(readTableSlot(getSlot(hash(streamName))));
+				List<String> streamNames = bucketChanges.get(bucketOffset);
+				if (streamNames == null) {
+					streamNames = new ArrayList<String>();
+					bucketChanges.put(bucketOffset, streamNames);
+				}
+				streamNames.add(streamName);
+			}
+			
+			int delta = 0;
+			for (Map.Entry<Long, List<String>> entry : bucketChanges.entrySet()) {
+				DirectoryBucket bucket = readBucketForUpdate(entry.getKey().longValue());
+				for (String streamName : entry.getValue()) {
+					DirectoryEntry change = changes.get(streamName);
+					DirectoryEntry previous;
+					if (change == null) {
+						previous = bucket.removeEntry(streamName);
+						if (previous != null) {
+							delta--;
+						}
+					} else {
+						previous = bucket.putEntry(streamName, change);
+						if (previous == null) {
+							delta++;
+						}
+					}
+					if (previous != null) {
+						previousEntries.add(previous);
+					}
+				}
+				
+				int slot = getSlot(hash(entry.getValue().get(0)));
+				storeBucket(bucket, slot & getMask(bucket.getDepth()));
+			}
+			
+			if (delta != 0) {
+				addCount(delta);
+			}
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+		
+		return previousEntries;
+	}
+	
+	/**
+	 * @return the names of all streams, in order
+	 */
+	public Collection<String> getStreamNames() throws IOException {
+		tableLock.readLock().lock();
+		try {
+			Set<String> streamNames = new TreeSet<String>();
+			for (Long bucketOffset : getBucketOffsets()) {
+				Lock bucketLock = getBucketLock(bucketOffset.longValue());
+				bucketLock.lock();
+				try {
+					streamNames.addAll(readBucket(bucketOffset.longValue()).getStreamNames());
+				} finally {
+					bucketLock.unlock();
+				}
+			}
+			return streamNames;
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * returns a bucket, from the cache if it is there. The bucket may be shared with 
+	 * other readers and must not be changed. The caller must hold the bucket's stripe 
+	 * lock, or the table lock exclusively, or otherwise be the only user of the index.
+	 */
+	public DirectoryBucket readBucket(long bucketOffset) throws IOException {
+		if (caches == null) {
+			return loadBucket(bucketOffset);
+		}
+		
+		BucketCache cache = caches[getStripe(bucketOffset)];
+		Long key = Long.valueOf(bucketOffset);
+		DirectoryBucket bucket = cache.get(key);
+		if (bucket != null) {
+			store.getMetrics().directoryCacheHit();
+			return bucket;
+		}
+		
+		store.getMetrics().directoryCacheMiss();
+		bucket = loadBucket(bucketOffset);
+		cache.put(key, bucket);
+		return bucket;
+	}
+	
+	/**
+	 * returns a bucket that the caller is free to change and write back
+	 */
+	private DirectoryBucket readBucketForUpdate(long bucketOffset) throws IOException {
+		DirectoryBucket bucket = readBucket(bucketOffset);
+		return (caches == null) ? bucket : bucket.copy();
+	}
+	
+	private DirectoryBucket loadBucket(long bucketOffset) throws IOException {
+		DirectoryBucket bucket = new DirectoryBucket(bucketOffset, 0);
+		bucket.read(store);
+		return bucket;
+	}
+	
+	/**
+	 * writes a bucket, that fits its blocks, and replaces the cached copy with it
+	 */
+	private void writeBucket(DirectoryBucket bucket) throws IOException {
+		bucket.allocateOverflows(allocator, store.getBlockSize());
+		bucket.write(store);
+		if (caches != null) {
+			caches[getStripe(bucket.offset)].put(Long.valueOf(bucket.offset), bucket);
+		}
+	}
+	
+	/**
+	 * @return the offsets of all distinct buckets, in table order. The caller must hold 
+	 * the table lock, or otherwise be the only user of the index.
+	 */
+	public Collection<Long> getBucketOffsets() throws IOException {
+		Set<Long> bucketOffsets = new LinkedHashSet<Long>();
+		int slots = 1 << globalDepth;
+		for (int slot = 0; slot < slots; slot++) {
+			bucketOffsets.add(Long.valueOf(readTableSlot(slot)));
+		}
+		return bucketOffsets;
+	}
+	
+	/**
+	 * marks the index block and the blocks of the table as used; the buckets are 
+	 * marked by the caller as it visits them
+	 */
+	public void markBlocks(BitSet used, int blockSize) {
+		used.set((int) (offset / blockSize));
+		int firstBlock = (int) (tableOffset / blockSize);
+		used.set(firstBlock, firstBlock + getTableBlocks(globalDepth));
+	}
+	
+	/**
+	 * writes a bucket back, first splitting it for as long as it needs more than one block
+	 * and its names can still be told apart by their hashes
+	 * 
+	 * @param prefix the low depth bits of the hashes of the bucket's names
+	 */
+	private void storeBucket(DirectoryBucket bucket, int prefix) throws IOException {
+		int blockSize = store.getBlockSize();
+		if ((bucket.getBlocksNeeded(blockSize) > 1) && canSplit(bucket)) {
+			splitBucket(bucket, prefix);
+		} else {
+			writeBucket(bucket);
+		}
+	}
+	
+	private void splitBucket(DirectoryBucket bucket, int prefix) throws IOException {
+		int depth = bucket.getDepth();
+		if (depth == globalDepth) {
+			growTable();
+		}
+		
+		long bit = 1L << depth;
+		DirectoryBucket sibling = new DirectoryBucket(allocator.allocateBlock(), depth + 1);
+		bucket.setDepth(depth + 1);
+		for (String streamName : new ArrayList<String>(bucket.getStreamNames())) {
+			if ((hash(streamName) & bit) != 0) {
+				sibling.putEntry(streamName, bucket.removeEntry(streamName));
+			}
+		}
+		
+		int siblingPrefix = prefix | (int) bit;
+		int slots = 1 << globalDepth;
+		int step = 1 << (depth + 1);
+		for (int slot = siblingPrefix; slot < slots; slot += step) {
+			writeTableSlot(slot, sibling.offset);
+		}
+		
+		storeBucket(bucket, prefix);
+		storeBucket(sibling, siblingPrefix);
+	}
+	
+	/**
+	 * @return whether splitting the bucket, perhaps more than once, would separate its names
+	 */
+	private boolean canSplit(DirectoryBucket bucket) {
+		if (bucket.getDepth() >= MAXDEPTH) {
+			return false;
+		}
+		
+		long mask = getMask(MAXDEPTH);
+		long firstHash = -1;
+		for (String streamName : bucket.getStreamNames()) {
+			long bucketHash = hash(streamName) & mask;
+			if (firstHash < 0) {
+				firstHash = bucketHash;
+			} else if (bucketHash != firstHash) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * doubles the table into a new run of blocks, with both halves pointing to the 
+	 * same buckets as the old table, and releases the old table
+	 */
+	private void growTable() throws IOException {
+		int blockSize = store.getBlockSize();
+		long oldOffset = tableOffset;
+		int oldBlocks = getTableBlocks(globalDepth);
+		long oldLength = (1L << globalDepth) * 8;
+		
+		long newOffset = allocator.allocateContiguous(getTableBlocks(globalDepth + 1)).getOffset();
+		byte[] data = new byte[(int) Math.min(oldLength, COPYSIZE)];
+		for (long pos = 0; pos < oldLength; pos += data.length) {
+			int len = (int) Math.min(data.length, oldLength - pos);
+			store.read(oldOffset + pos, data, 0, len);
+			store.write(newOffset + pos, data, 0, len);
+			store.write(newOffset + oldLength + pos, data, 0, len);
+		}
+		store.ensureLength(newOffset + ((long) getTableBlocks(globalDepth + 1)) * blockSize);
+		
+		tableOffset = newOffset;
+		globalDepth++;
+		write(store);
+		allocator.free(oldOffset, ((long) oldBlocks) * blockSize);
+	}
+	
+	private static boolean matches(DirectoryEntry entry, DirectoryEntry expected) {
+		if ((entry == null) || (entry.isInline() != expected.isInline())) {
+			return false;
+		}
+		return entry.isInline() ? Arrays.equals(entry.getData(), expected.getData()) : (entry.getStreamOffset() == expected.getStreamOffset());
+	}
+	
+	private synchronized void addCount(int delta) throws IOException {
+		count += delta;
+		write(store);
+	}
+	
+	private Lock getBucketLock(long bucketOffset) {
+		return bucketLocks[getStripe(bucketOffset)];
+	}
+	
+	private int getStripe(long bucketOffset) {
+		return (int) ((bucketOffset / store.getBlockSize()) % STRIPES);
+	}
+	
+	private long readTableSlot(int slot) throws IOException {
+		return store.readLong(tableOffset + (slot * 8L));
+	}
+	
+	private void writeTableSlot(int slot, long bucketOffset) throws IOException {
+		store.writeLong(tableOffset + (slot * 8L), bucketOffset);
+	}
+	
+	private int getSlot(long nameHash) {
+		return (int) (nameHash & getMask(globalDepth));
+	}
+	
+	private int getTableBlocks(int depth) {
+		int blockSize = store.getBlockSize();
+		return (int) Math.max(1, (((1L << depth) * 8) + blockSize - 1) / blockSize);
+	}
+	
+	private static int getMask(int depth) {
+		return (1 << depth) - 1;
+	}
+	
+	/**
+	 * a 64 bit FNV-1a hash of the name's characters, with the bits mixed so that the
+	 * low bits, which pick the table slot, depend on the whole name. This is part of 
+	 * the container format, and must not change.
+	 */
+	static long hash(String streamName) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < streamName.length(); i++) {
+			h ^= streamName.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		
+		h ^= (h >>> 33);
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= (h >>> 33);
+		return h;
+	}
+	
+	/**
+	 * the least recently used buckets of one stripe, guarded by the stripe's lock
+	 */
+	private static class BucketCache extends LinkedHashMap<Long, DirectoryBucket> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private int capacity;
+		
+		BucketCache(int maxBuckets) {
+			super(16, 0.75f, true);
+			capacity = maxBuckets;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, DirectoryBucket> eldest) {
+			return size() > capacity;
+		}
+	}
+	
+	public String toString() {
+		return "DirectoryIndex[OFFSET: " + offset + " DEPTH: " + globalDepth + " TABLE: " + tableOffset + " COUNT: " + count + "]";
+	}
+}
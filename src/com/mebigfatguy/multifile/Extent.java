@@ -0,0 +1,81 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+/**
+ * a contiguous range of bytes in the container, as an offset and a length
+ */
+class Extent {
+	
+	private long offset;
+	private long length;
+	
+	public Extent(long extentOffset, long extentLength) {
+		offset = extentOffset;
+		length = extentLength;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public long getLength() {
+		return length;
+	}
+	
+	public long getEnd() {
+		return offset + length;
+	}
+	
+	public void setLength(long newLength) {
+		length = newLength;
+	}
+	
+	/**
+	 * the offset of the first block touched by this extent
+	 */
+	public long getFirstBlock(int blockSize) {
+		return (offset / blockSize) * blockSize;
+	}
+	
+	/**
+	 * the offset just past the last block touched by this extent
+	 */
+	public long getBlockEnd(int blockSize) {
+		return ((offset + length + blockSize - 1) / blockSize) * blockSize;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Extent)) {
+			return false;
+		}
+		
+		Extent that = (Extent) o;
+		return (offset == that.offset) && (length == that.length);
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (offset ^ (offset >>> 32)) * 31 + (int) (length ^ (length >>> 32));
+	}
+	
+	public String toString() {
+		return "Extent[OFFSET: " + offset + " LENGTH: " + length + "]";
+	}
+}
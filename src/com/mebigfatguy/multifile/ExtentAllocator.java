@@ -0,0 +1,527 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * hands out contiguous runs of blocks, preferring free space in the container over
+ * growing the file. Free space is kept coalesced, indexed both by offset, to merge
+ * neighbors when space is released, and by size, to find the best fit for a request.
+ * <p>
+ * Once persistent, every free extent also occupies a slot in a chain of FREELIST 
+ * blocks, and each change to free space rewrites just the slots it touches. Opening 
+ * a container then only needs to read the free list, rather than walking every 
+ * stream to find out what is free.
+ * <p>
+ * The allocator is shared by all writers, so every operation is synchronized; each 
+ * one is short, a lookup in the in-memory indexes plus a slot or two of the free list.
+ * <p>
+ * Streams that are deleted or replaced are not freed right away, but queued, and 
+ * only read and freed once their space is wanted: when a request can not be met 
+ * from free space, before compaction, and when the container is closed. Dropping a 
+ * stream thus costs no more than changing its directory entry, however many extents
+ * it has. Queued streams are neither free nor reachable from the directory, so if the 
+ * container is not closed properly, rebuilding the free list reclaims them.
+ * <p>
+ * Streams that have been cloned share their data blocks, see SharedBlocks. Such 
+ * blocks are released by each stream that references them, and only become free 
+ * once the last one does.
+ */
+class ExtentAllocator {
+	
+	private static final int SLOTSIZE = 8 + 8;
+	
+	private static final Comparator<Extent> SIZE_COMPARATOR = new Comparator<Extent>() {
+		@Override
+		public int compare(Extent e1, Extent e2) {
+			if (e1.getLength() != e2.getLength()) {
+				return (e1.getLength() < e2.getLength()) ? -1 : 1;
+			}
+			if (e1.getOffset() != e2.getOffset()) {
+				return (e1.getOffset() < e2.getOffset()) ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+	
+	private BlockStore store;
+	private TreeMap<Long, Extent> freeByOffset = new TreeMap<Long, Extent>();
+	private TreeSet<Extent> freeBySize = new TreeSet<Extent>(SIZE_COMPARATOR);
+	private long freeSize;
+	private boolean persistent;
+	private List<Long> listBlocks = new ArrayList<Long>();
+	private Map<Long, Integer> slots = new HashMap<Long, Integer>();
+	private List<Integer> emptySlots = new ArrayList<Integer>();
+	private List<Long> pendingStreams = new ArrayList<Long>();
+	private SharedBlocks shared = new SharedBlocks();
+	private List<Long> sharedListBlocks = new ArrayList<Long>();
+	private long releaseCount = 0;
+	
+	public ExtentAllocator(BlockStore blockStore) {
+		store = blockStore;
+		freeSize = 0;
+		persistent = false;
+	}
+	
+	/**
+	 * allocates up to the requested number of contiguous blocks. The smallest free run 
+	 * that satisfies the request is used, or else the largest free run is handed out 
+	 * whole, in which case fewer blocks than requested are returned. Only when there 
+	 * is no free space at all is the file grown.
+	 * 
+	 * @param blocks the number of blocks wanted
+	 * @return the allocated extent, between one and the requested number of blocks long
+	 */
+	public synchronized Extent allocate(int blocks) throws IOException {
+		long wanted = ((long) blocks) * store.getBlockSize();
+		
+		if (freeBySize.ceiling(new Extent(-1, wanted)) == null) {
+			reclaim();
+		}
+		if ((freeBySize.ceiling(new Extent(-1, wanted)) == null) && !freeBySize.isEmpty()) {
+			Extent free = freeBySize.last();
+			remove(free);
+			return free;
+		}
+		
+		return allocateContiguous(blocks);
+	}
+	
+	/**
+	 * allocates exactly the requested number of contiguous blocks, from the best 
+	 * fitting free run, or else by growing the file
+	 */
+	public synchronized Extent allocateContiguous(int blocks) throws IOException {
+		long wanted = ((long) blocks) * store.getBlockSize();
+		
+		Extent free = freeBySize.ceiling(new Extent(-1, wanted));
+		if ((free == null) && reclaim()) {
+			free = freeBySize.ceiling(new Extent(-1, wanted));
+		}
+		if (free != null) {
+			remove(free);
+			if (free.getLength() > wanted) {
+				add(new Extent(free.getOffset() + wanted, free.getLength() - wanted));
+			}
+			return new Extent(free.getOffset(), wanted);
+		}
+		
+		long offset = store.length();
+		store.ensureLength(offset + wanted);
+		store.getMetrics().endOfFileAllocation();
+		return new Extent(offset, wanted);
+	}
+	
+	/**
+	 * allocates the requested number of contiguous blocks from the lowest free run 
+	 * that holds them, as long as that run starts below the given offset. Used to move
+	 * data towards the start of the container.
+	 * 
+	 * @return the allocated extent, or null if there is no such run
+	 */
+	public synchronized Extent allocateBelow(int blocks, long limit) throws IOException {
+		long wanted = ((long) blocks) * store.getBlockSize();
+		
+		for (Extent free : freeByOffset.values()) {
+			if (free.getOffset() >= limit) {
+				break;
+			}
+			if (free.getLength() >= wanted) {
+				remove(free);
+				if (free.getLength() > wanted) {
+					add(new Extent(free.getOffset() + wanted, free.getLength() - wanted));
+				}
+				return new Extent(free.getOffset(), wanted);
+			}
+		}
+		
+		return null;
+	}
+	
+	public synchronized long allocateBlock() throws IOException {
+		return allocate(1).getOffset();
+	}
+	
+	/**
+	 * returns a block aligned range of the container to free space, merging it 
+	 * with adjacent free runs. Free space at the end of the file is trimmed off 
+	 * rather than kept.
+	 */
+	public synchronized void free(long offset, long length) throws IOException {
+		if (length <= 0) {
+			return;
+		}
+		
+		Map.Entry<Long, Extent> before = freeByOffset.lowerEntry(Long.valueOf(offset));
+		if ((before != null) && (before.getValue().getEnd() == offset)) {
+			Extent prev = before.getValue();
+			remove(prev);
+			offset = prev.getOffset();
+			length += prev.getLength();
+		}
+		
+		Extent next = freeByOffset.get(Long.valueOf(offset + length));
+		if (next != null) {
+			remove(next);
+			length += next.getLength();
+		}
+		
+		if ((offset + length) == store.length()) {
+			store.setLength(offset);
+		} else {
+			add(new Extent(offset, length));
+		}
+	}
+	
+	public synchronized void freeBlock(long offset) throws IOException {
+		free(offset, store.getBlockSize());
+	}
+	
+	/**
+	 * queues the blocks of a stream that is no longer in the directory, to be freed 
+	 * when the space is next needed
+	 */
+	public synchronized void freeStreamLater(long streamOffset) {
+		pendingStreams.add(Long.valueOf(streamOffset));
+	}
+	
+	/**
+	 * frees the blocks of all streams queued by freeStreamLater
+	 * 
+	 * @return whether any streams were queued
+	 */
+	public synchronized boolean reclaim() throws IOException {
+		if (pendingStreams.isEmpty()) {
+			return false;
+		}
+		
+		List<Long> streamOffsets = pendingStreams;
+		pendingStreams = new ArrayList<Long>();
+		int blockSize = store.getBlockSize();
+		for (Long streamOffset : streamOffsets) {
+			StreamBlock stream = new StreamBlock(streamOffset.longValue());
+			stream.read(store);
+			stream.free(this, blockSize);
+		}
+		return true;
+	}
+	
+	/**
+	 * releases one stream's reference to a run of data blocks, freeing the parts that 
+	 * no other stream references
+	 */
+	public synchronized void release(long offset, long length) throws IOException {
+		releaseCount++;
+		for (Extent unreferenced : shared.removeReference(offset, length)) {
+			free(unreferenced.getOffset(), unreferenced.getLength());
+		}
+	}
+	
+	/**
+	 * @return the number of runs of blocks released so far, to tell whether a stream 
+	 * looked up earlier may have been freed since
+	 */
+	public synchronized long getReleaseCount() {
+		return releaseCount;
+	}
+	
+	/**
+	 * adds a reference to each data block of a stream, for a clone of it. This fails 
+	 * if any blocks were released since the stream was read, as they may have been its.
+	 * 
+	 * @param expectedReleases the release count from before the stream was looked up
+	 * @return whether the blocks were shared
+	 */
+	public synchronized boolean share(StreamBlock stream, long expectedReleases) {
+		if (releaseCount != expectedReleases) {
+			return false;
+		}
+		
+		int blockSize = store.getBlockSize();
+		for (Extent extent : stream.getExtents()) {
+			long firstBlock = extent.getFirstBlock(blockSize);
+			shared.addReference(firstBlock, extent.getBlockEnd(blockSize) - firstBlock);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return whether any block of a run is referenced by more than one stream
+	 */
+	public synchronized boolean isShared(long offset, long length) {
+		return shared.isShared(offset, length);
+	}
+	
+	/**
+	 * @return whether any data block of a stream is referenced by another stream too
+	 */
+	public synchronized boolean isShared(StreamBlock stream) {
+		int blockSize = store.getBlockSize();
+		for (Extent extent : stream.getExtents()) {
+			long firstBlock = extent.getFirstBlock(blockSize);
+			if (shared.isShared(firstBlock, extent.getBlockEnd(blockSize) - firstBlock)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * replaces the table of shared blocks, when it has been rebuilt
+	 */
+	public synchronized void setSharedBlocks(SharedBlocks sharedBlocks) {
+		shared = sharedBlocks;
+	}
+	
+	/**
+	 * loads the table of shared blocks from the chain starting at the given block. The
+	 * chain's blocks stay in use until the table is next written.
+	 */
+	public synchronized void readSharedList(long firstOffset) throws IOException {
+		sharedListBlocks.addAll(shared.read(store, firstOffset));
+	}
+	
+	/**
+	 * writes the table of shared blocks to blocks taken from free space, and releases 
+	 * those of the previous table
+	 * 
+	 * @return the offset of the first block of the table, or 0 if no blocks are shared
+	 */
+	public synchronized long writeSharedList() throws IOException {
+		for (Long blockOffset : sharedListBlocks) {
+			freeBlock(blockOffset.longValue());
+		}
+		sharedListBlocks.clear();
+		
+		int numBlocks = shared.getBlocksNeeded(store.getBlockSize());
+		for (int i = 0; i < numBlocks; i++) {
+			sharedListBlocks.add(Long.valueOf(allocateBlock()));
+		}
+		shared.write(store, sharedListBlocks);
+		return sharedListBlocks.isEmpty() ? 0 : sharedListBlocks.get(0).longValue();
+	}
+	
+	public synchronized long getFreeSize() {
+		return freeSize;
+	}
+	
+	public synchronized int getFreeExtentCount() {
+		return freeByOffset.size();
+	}
+	
+	/**
+	 * @return the offset of the first block of the free list, or 0 if free space is 
+	 * not persistent
+	 */
+	public synchronized long getFreeListOffset() {
+		return listBlocks.isEmpty() ? 0 : listBlocks.get(0).longValue();
+	}
+	
+	/**
+	 * forgets all free space, the free list and the shared blocks, ahead of free space
+	 * being rebuilt
+	 */
+	public synchronized void clear() {
+		persistent = false;
+		freeByOffset.clear();
+		freeBySize.clear();
+		freeSize = 0;
+		listBlocks.clear();
+		slots.clear();
+		emptySlots.clear();
+		pendingStreams.clear();
+		shared = new SharedBlocks();
+		sharedListBlocks.clear();
+	}
+	
+	/**
+	 * loads free space from the free list starting at the given block, and keeps the
+	 * list up to date from then on
+	 */
+	public synchronized void readFreeList(long firstOffset) throws IOException {
+		int slotsPerBlock = getSlotsPerBlock();
+		BlockHeader header = new BlockHeader();
+		long blockOffset = firstOffset;
+		while (blockOffset != 0) {
+			header.read(store, blockOffset);
+			if (header.getBlockType() != BlockType.FREELIST) {
+				throw new IOException("Expected a free list block at " + blockOffset + ": " + header);
+			}
+			
+			int firstSlot = listBlocks.size() * slotsPerBlock;
+			listBlocks.add(Long.valueOf(blockOffset));
+			for (int i = slotsPerBlock - 1; i >= 0; i--) {
+				long pos = blockOffset + BlockHeader.BLOCKHEADERSIZE + (i * SLOTSIZE);
+				long length = store.readLong(pos + 8);
+				if (length == 0) {
+					emptySlots.add(Integer.valueOf(firstSlot + i));
+				} else {
+					Extent extent = new Extent(store.readLong(pos), length);
+					freeByOffset.put(Long.valueOf(extent.getOffset()), extent);
+					freeBySize.add(extent);
+					freeSize += length;
+					slots.put(Long.valueOf(extent.getOffset()), Integer.valueOf(firstSlot + i));
+				}
+			}
+			blockOffset = header.getNextBlock();
+		}
+		
+		persistent = true;
+	}
+	
+	/**
+	 * writes a new free list holding the current free space, taking its blocks from 
+	 * that free space, and keeps the list up to date from then on. Any previous 
+	 * list is abandoned, its blocks are expected to already be part of free space.
+	 * A container without free space has no free list blocks until it needs them.
+	 */
+	public synchronized void writeFreeList() throws IOException {
+		persistent = false;
+		listBlocks.clear();
+		slots.clear();
+		emptySlots.clear();
+		
+		int slotsPerBlock = getSlotsPerBlock();
+		int numBlocks = (freeByOffset.size() + slotsPerBlock - 1) / slotsPerBlock;
+		for (int i = 0; i < numBlocks; i++) {
+			listBlocks.add(Long.valueOf(allocateBlock()));
+		}
+		
+		for (int b = 0; b < numBlocks; b++) {
+			long next = (b + 1 < numBlocks) ? listBlocks.get(b + 1).longValue() : 0;
+			writeListBlock(listBlocks.get(b).longValue(), next);
+		}
+		
+		for (int slot = (numBlocks * slotsPerBlock) - 1; slot >= 0; slot--) {
+			emptySlots.add(Integer.valueOf(slot));
+		}
+		
+		persistent = true;
+		for (Extent extent : freeByOffset.values()) {
+			writeSlot(extent);
+		}
+	}
+	
+	/**
+	 * writes a new free list, taking its blocks from free space, and releases the blocks
+	 * of the old one, so that a free list that had grown at the end of the file no 
+	 * longer keeps the file from being trimmed
+	 */
+	public synchronized void rewriteFreeList() throws IOException {
+		List<Long> oldBlocks = new ArrayList<Long>(listBlocks);
+		persistent = false;
+		listBlocks.clear();
+		slots.clear();
+		emptySlots.clear();
+		
+		for (Long blockOffset : oldBlocks) {
+			free(blockOffset.longValue(), store.getBlockSize());
+		}
+		writeFreeList();
+	}
+	
+	private void add(Extent extent) throws IOException {
+		freeByOffset.put(Long.valueOf(extent.getOffset()), extent);
+		freeBySize.add(extent);
+		freeSize += extent.getLength();
+		if (persistent) {
+			writeSlot(extent);
+		}
+	}
+	
+	private void remove(Extent extent) throws IOException {
+		freeByOffset.remove(Long.valueOf(extent.getOffset()));
+		freeBySize.remove(extent);
+		freeSize -= extent.getLength();
+		if (persistent) {
+			Integer slot = slots.remove(Long.valueOf(extent.getOffset()));
+			store.writeLong(getSlotPosition(slot.intValue()) + 8, 0);
+			emptySlots.add(slot);
+		}
+	}
+	
+	private void writeSlot(Extent extent) throws IOException {
+		if (emptySlots.isEmpty()) {
+			growFreeList();
+		}
+		
+		Integer slot = emptySlots.remove(emptySlots.size() - 1);
+		long pos = getSlotPosition(slot.intValue());
+		store.writeLong(pos, extent.getOffset());
+		store.writeLong(pos + 8, extent.getLength());
+		slots.put(Long.valueOf(extent.getOffset()), slot);
+	}
+	
+	/**
+	 * adds a block of empty slots to the end of the free list. The block is taken from 
+	 * the end of the file, as taking it from free space would change the free list 
+	 * while it is being grown.
+	 */
+	private void growFreeList() throws IOException {
+		long blockOffset = store.length();
+		store.ensureLength(blockOffset + store.getBlockSize());
+		writeListBlock(blockOffset, 0);
+		
+		if (!listBlocks.isEmpty()) {
+			long lastBlock = listBlocks.get(listBlocks.size() - 1).longValue();
+			BlockHeader header = new BlockHeader();
+			header.read(store, lastBlock);
+			header.setNextBlock(blockOffset);
+			header.write(store, lastBlock);
+		}
+		
+		int slotsPerBlock = getSlotsPerBlock();
+		int firstSlot = listBlocks.size() * slotsPerBlock;
+		listBlocks.add(Long.valueOf(blockOffset));
+		for (int i = slotsPerBlock - 1; i >= 0; i--) {
+			emptySlots.add(Integer.valueOf(firstSlot + i));
+		}
+	}
+	
+	private void writeListBlock(long blockOffset, long nextOffset) throws IOException {
+		int slotsPerBlock = getSlotsPerBlock();
+		for (int i = 0; i < slotsPerBlock; i++) {
+			store.writeLong(blockOffset + BlockHeader.BLOCKHEADERSIZE + (i * SLOTSIZE) + 8, 0);
+		}
+		BlockHeader header = new BlockHeader(BlockType.FREELIST, slotsPerBlock * SLOTSIZE, nextOffset);
+		header.write(store, blockOffset);
+		store.ensureLength(blockOffset + store.getBlockSize());
+	}
+	
+	private long getSlotPosition(int slot) {
+		int slotsPerBlock = getSlotsPerBlock();
+		long blockOffset = listBlocks.get(slot / slotsPerBlock).longValue();
+		return blockOffset + BlockHeader.BLOCKHEADERSIZE + ((slot % slotsPerBlock) * SLOTSIZE);
+	}
+	
+	private int getSlotsPerBlock() {
+		return (store.getBlockSize() - BlockHeader.BLOCKHEADERSIZE) / SLOTSIZE;
+	}
+	
+	public synchronized String toString() {
+		return "ExtentAllocator[FREE: " + freeSize + " EXTENTS: " + freeByOffset.size() + " LISTBLOCKS: " + listBlocks.size() + " SHARED: " + shared.size() + "]";
+	}
+}
@@ -18,61 +18,33 @@
 package com.mebigfatguy.multifile;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Map;
 
-public class FileBlock extends AbstractBlock {
+/**
+ * a block of a stream in containers before version 2, where each stream was a chain
+ * of blocks. These are only read now, when such a container is upgraded to stream 
+ * blocks, so unlike the blocks still in use, they can not be written.
+ */
+public class FileBlock {
 
-	private static final int DATASIZE = MultiFile.BLOCKSIZE - BlockHeader.BLOCKHEADERSIZE;
-	
 	long startOffset;
+	private BlockHeader header;
 	
 	public FileBlock(long blockOffset) {
-		super(new BlockHeader(BlockType.FILE, 0, 0));
+		header = new BlockHeader(BlockType.FILE, 0, 0);
 		startOffset = blockOffset;
 	}
 	
-	@Override
-	public void write(RandomAccessFile raFile) throws IOException {
-		raFile.seek(startOffset);
-		header.write(raFile);
-		
-		if (raFile.getFilePointer() == raFile.length()) {
-			raFile.setLength(startOffset + MultiFile.BLOCKSIZE);
-		}
-	}
-
-	@Override
-	public void read(RandomAccessFile raFile) throws IOException {
-		raFile.seek(startOffset);
+	public void read(BlockStore store) throws IOException {
 		header = new BlockHeader();
-		header.read(raFile);
+		header.read(store, startOffset);
 	}
 
-	public int getSize() {
-		return header.getSize();
+	public BlockHeader getHeader() {
+		return header;
 	}
 	
-	public int writeStream(RandomAccessFile raFile, byte[] data, int offset, int length) throws IOException {
-		int oldSize = header.getSize();
-		int growSize = oldSize + length;
-		
-		if (growSize > DATASIZE) {
-			header.setSize(DATASIZE);
-		} else {
-			header.setSize(growSize);
-		}
-		
-		raFile.seek(startOffset);
-		header.write(raFile);
-		int writeSize = Math.min(DATASIZE - oldSize, length);
-		raFile.seek(startOffset + BlockHeader.BLOCKHEADERSIZE + oldSize);
-		raFile.write(data, offset, writeSize);
-		
-		if (raFile.getFilePointer() == raFile.length()) {
-			raFile.setLength(startOffset + MultiFile.BLOCKSIZE);
-		}
-		return writeSize;
+	public int getSize() {
+		return header.getSize();
 	}
 	
 	public String toString() {
@@ -0,0 +1,371 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * an optional write-ahead journal, kept in a file beside the container, that makes
+ * changes to the container's metadata, its superblock, directory, stream blocks and 
+ * free list, atomic and durable.
+ * <p>
+ * While a journal is attached, metadata is not written to the container in place, as
+ * the memory mapping could be written back by the system at any time, before the 
+ * change is safely logged. Instead each block changed is copied into a shadow block 
+ * in memory, which all reads and writes of it then go to. Changes are grouped into 
+ * updates, and at the end of an update the images of the blocks it changed are 
+ * appended to the journal as one checksummed record. Only at a checkpoint, once the 
+ * journal has grown large, or when the container is closed, are the shadow blocks 
+ * written back to the container, which is forced, and the journal emptied. Opening a
+ * container replays whatever complete records its journal holds.
+ * <p>
+ * Updates are serialized, but waiting for a record to reach the disk is not: a thread 
+ * that needs its update to be durable forces the journal, and in doing so makes the 
+ * records of every thread that appended in the meantime durable too, so many threads 
+ * share one force.
+ * <p>
+ * Stream data is not journaled, it is written in place as before, so after a crash a
+ * stream's blocks are always consistent but the data last written to it may not be.
+ * Since a journaled image of a block that is freed and then reused for stream data 
+ * must never be replayed over that data, writing data to such a block checkpoints
+ * first.
+ */
+class Journal {
+	
+	private static final int RECORDMAGIC = 0x4D464A52;
+	private static final int RECORDHEADERSIZE = 4 + 8 + 4 + 4;
+	private static final long CHECKPOINTSIZE = 8 * 1024 * 1024;
+	
+	private BlockStore store;
+	private File file;
+	private RandomAccessFile raFile;
+	private FileChannel channel;
+	private long journalLength;
+	private ReentrantLock updateLock = new ReentrantLock();
+	private boolean durableRequested;
+	private Map<Long, ByteBuffer> shadows = new ConcurrentHashMap<Long, ByteBuffer>();
+	private Set<Long> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private Set<Long> logged = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private long sequence;
+	private volatile long appendedSequence;
+	private volatile long forcedSequence;
+	private Object forceLock = new Object();
+	
+	public Journal(BlockStore blockStore, File containerFile) throws IOException {
+		store = blockStore;
+		file = getJournalFile(containerFile);
+		raFile = new RandomAccessFile(file, "rw");
+		channel = raFile.getChannel();
+		channel.truncate(0);
+		journalLength = 0;
+		sequence = 0;
+		appendedSequence = 0;
+		forcedSequence = 0;
+	}
+	
+	public static File getJournalFile(File containerFile) {
+		return new File(containerFile.getPath() + ".journal");
+	}
+	
+	/**
+	 * applies the complete records of a container's journal, if it has one, to the 
+	 * container, and removes the journal. A record that is cut short, or whose checksum
+	 * does not match, ends the replay, as it and anything after it were never committed.
+	 * 
+	 * @return the number of records replayed
+	 */
+	public static int replay(BlockStore store, File containerFile) throws IOException {
+		File journalFile = getJournalFile(containerFile);
+		if (!journalFile.exists()) {
+			return 0;
+		}
+		
+		int records = 0;
+		RandomAccessFile journalRaFile = new RandomAccessFile(journalFile, "r");
+		try {
+			FileChannel journalChannel = journalRaFile.getChannel();
+			long pos = 0;
+			long length = journalChannel.size();
+			while ((length - pos) >= RECORDHEADERSIZE) {
+				ByteBuffer header = ByteBuffer.allocate(RECORDHEADERSIZE);
+				readFully(journalChannel, header, pos);
+				header.flip();
+				if (header.getInt() != RECORDMAGIC) {
+					break;
+				}
+				header.getLong();
+				int count = header.getInt();
+				int imageSize = header.getInt();
+				long recordSize = getRecordSize(count, imageSize);
+				if ((count < 0) || (imageSize <= 0) || ((length - pos) < recordSize)) {
+					break;
+				}
+				
+				ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+				readFully(journalChannel, record, pos);
+				CRC32 crc = new CRC32();
+				crc.update(record.array(), 0, (int) recordSize - 8);
+				record.position((int) recordSize - 8);
+				if (record.getLong() != crc.getValue()) {
+					break;
+				}
+				
+				record.position(RECORDHEADERSIZE);
+				byte[] image = new byte[imageSize];
+				for (int i = 0; i < count; i++) {
+					long blockOffset = record.getLong();
+					record.get(image);
+					store.write(blockOffset, image, 0, imageSize);
+				}
+				
+				records++;
+				pos += recordSize;
+			}
+		} finally {
+			journalRaFile.close();
+		}
+		
+		store.force();
+		if (!journalFile.delete()) {
+			throw new IOException("Failed to remove journal " + journalFile);
+		}
+		return records;
+	}
+	
+	/**
+	 * starts an update, waiting for any other thread's update to end. Updates may be
+	 * nested, only the outermost one is logged.
+	 */
+	public void beginUpdate() {
+		updateLock.lock();
+	}
+	
+	/**
+	 * ends an update, logging the blocks changed since the last update ended
+	 * 
+	 * @param durable whether to wait until the update has reached the disk
+	 */
+	public void endUpdate(boolean durable) throws IOException {
+		long updateSequence;
+		boolean force;
+		try {
+			durableRequested |= durable;
+			if (updateLock.getHoldCount() > 1) {
+				return;
+			}
+			
+			updateSequence = append();
+			force = durableRequested;
+			durableRequested = false;
+			if (journalLength > CHECKPOINTSIZE) {
+				checkpoint();
+			}
+		} finally {
+			updateLock.unlock();
+		}
+		
+		if (force) {
+			force(updateSequence);
+		}
+	}
+	
+	/**
+	 * @return the shadow of a block to read, or null if reads of it should go to the container
+	 */
+	public ByteBuffer findShadow(long blockOffset) {
+		return shadows.get(Long.valueOf(blockOffset));
+	}
+	
+	/**
+	 * @return the shadow of a block to write, copying the block from the container if 
+	 * it has none yet
+	 */
+	public ByteBuffer getShadow(long blockOffset) throws IOException {
+		Long key = Long.valueOf(blockOffset);
+		ByteBuffer shadow = shadows.get(key);
+		if (shadow == null) {
+			store.ensureLength(blockOffset + store.getBlockSize());
+			byte[] image = new byte[store.getBlockSize()];
+			store.readDirect(blockOffset, image, 0, image.length);
+			shadow = ByteBuffer.wrap(image);
+			shadows.put(key, shadow);
+		}
+		dirty.add(key);
+		return shadow;
+	}
+	
+	/**
+	 * makes sure no shadow or journaled image exists of the blocks about to be written
+	 * with stream data, checkpointing if one does
+	 */
+	public void revoke(long pos, long len) throws IOException {
+		if (shadows.isEmpty() && logged.isEmpty()) {
+			return;
+		}
+		
+		int blockSize = store.getBlockSize();
+		long end = pos + len;
+		for (long blockOffset = pos - (pos % blockSize); blockOffset < end; blockOffset += blockSize) {
+			Long key = Long.valueOf(blockOffset);
+			if (shadows.containsKey(key) || logged.contains(key)) {
+				updateLock.lock();
+				try {
+					checkpoint();
+				} finally {
+					updateLock.unlock();
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * checkpoints the journal and removes it
+	 */
+	public void close() throws IOException {
+		updateLock.lock();
+		try {
+			checkpoint();
+			channel = null;
+			raFile.close();
+			raFile = null;
+			if (!file.delete()) {
+				throw new IOException("Failed to remove journal " + file);
+			}
+		} finally {
+			updateLock.unlock();
+		}
+	}
+	
+	/**
+	 * appends the images of all changed blocks as one record
+	 * 
+	 * @return the sequence number of the record, or of the last record if nothing changed
+	 */
+	private long append() throws IOException {
+		if (dirty.isEmpty()) {
+			return appendedSequence;
+		}
+		
+		int imageSize = store.getBlockSize();
+		Long[] blocks = dirty.toArray(new Long[dirty.size()]);
+		long recordSize = getRecordSize(blocks.length, imageSize);
+		if (recordSize > Integer.MAX_VALUE) {
+			throw new IOException("Journal record too large: " + recordSize);
+		}
+		
+		ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+		record.putInt(RECORDMAGIC);
+		record.putLong(++sequence);
+		record.putInt(blocks.length);
+		record.putInt(imageSize);
+		for (Long blockOffset : blocks) {
+			record.putLong(blockOffset.longValue());
+			record.put(shadows.get(blockOffset).array());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putLong(crc.getValue());
+		record.flip();
+		
+		while (record.hasRemaining()) {
+			journalLength += channel.write(record, journalLength);
+		}
+		
+		for (Long blockOffset : blocks) {
+			logged.add(blockOffset);
+			dirty.remove(blockOffset);
+		}
+		appendedSequence = sequence;
+		return sequence;
+	}
+	
+	/**
+	 * forces the journal, unless another thread's force already covered the given record
+	 */
+	private void force(long recordSequence) throws IOException {
+		if (forcedSequence >= recordSequence) {
+			return;
+		}
+		
+		synchronized (forceLock) {
+			if (forcedSequence >= recordSequence) {
+				return;
+			}
+			long appended = appendedSequence;
+			long start = store.getMetrics().startSync();
+			channel.force(false);
+			store.getMetrics().synced(start);
+			forcedSequence = appended;
+		}
+	}
+	
+	/**
+	 * writes all shadow blocks back to the container, forces it, and empties the journal.
+	 * Must be called with the update lock held.
+	 */
+	private void checkpoint() throws IOException {
+		append();
+		channel.force(false);
+		
+		int blockSize = store.getBlockSize();
+		long length = store.length();
+		for (Map.Entry<Long, ByteBuffer> entry : shadows.entrySet()) {
+			long blockOffset = entry.getKey().longValue();
+			if (blockOffset < length) {
+				store.writeDirect(blockOffset, entry.getValue().array(), 0, blockSize);
+			}
+		}
+		store.force();
+		shadows.clear();
+		logged.clear();
+		
+		channel.truncate(0);
+		channel.force(true);
+		journalLength = 0;
+		forcedSequence = appendedSequence;
+	}
+	
+	private static long getRecordSize(int count, int imageSize) {
+		return RECORDHEADERSIZE + (((long) count) * (8 + imageSize)) + 8;
+	}
+	
+	private static void readFully(FileChannel journalChannel, ByteBuffer buffer, long pos) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = journalChannel.read(buffer, pos);
+			if (read < 0) {
+				throw new IOException("Unexpected end of journal");
+			}
+			pos += read;
+		}
+	}
+	
+	public String toString() {
+		return "Journal[FILE: " + file + " LENGTH: " + journalLength + " SHADOWS: " + shadows.size() + " SEQUENCE: " + appendedSequence + "]";
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * asynchronous access to the data of a container's streams, through an 
+ * AsynchronousFileChannel over the container file. The channel shares the page cache
+ * with the store's mapping, so data written through either one is seen by the other.
+ * Only stream data goes through the channel; metadata is always read and written 
+ * through the store. The channel is opened on first use.
+ */
+class MFAsyncChannel {
+	
+	private File file;
+	private BlockStore store;
+	private volatile AsynchronousFileChannel channel;
+	
+	public MFAsyncChannel(File containerFile, BlockStore blockStore) {
+		file = containerFile;
+		store = blockStore;
+		channel = null;
+	}
+	
+	/**
+	 * reads data from the container until the buffer is full, reissuing short reads
+	 */
+	public CompletableFuture<Void> read(long pos, ByteBuffer dst) {
+		final CompletableFuture<Void> result = new CompletableFuture<Void>();
+		try {
+			final int len = dst.remaining();
+			final AsynchronousFileChannel current = getChannel();
+			final Metrics metrics = store.getMetrics();
+			current.read(dst, pos, Long.valueOf(pos), new CompletionHandler<Integer, Long>() {
+				@Override
+				public void completed(Integer count, Long readPos) {
+					if (count.intValue() < 0) {
+						result.completeExceptionally(new EOFException("Read past the end of " + file + " at " + readPos));
+					} else if (dst.hasRemaining()) {
+						long nextPos = readPos.longValue() + count.intValue();
+						current.read(dst, nextPos, Long.valueOf(nextPos), this);
+					} else {
+						metrics.dataRead(len);
+						result.complete(null);
+					}
+				}
+				
+				@Override
+				public void failed(Throwable t, Long readPos) {
+					result.completeExceptionally(t);
+				}
+			});
+		} catch (Throwable t) {
+			result.completeExceptionally(t);
+		}
+		return result;
+	}
+	
+	/**
+	 * writes all of a buffer to the container, reissuing short writes. The range must 
+	 * already be within the length of the store.
+	 */
+	public CompletableFuture<Void> write(long pos, ByteBuffer src) {
+		final CompletableFuture<Void> result = new CompletableFuture<Void>();
+		try {
+			final int len = src.remaining();
+			final AsynchronousFileChannel current = getChannel();
+			final Metrics metrics = store.getMetrics();
+			current.write(src, pos, Long.valueOf(pos), new CompletionHandler<Integer, Long>() {
+				@Override
+				public void completed(Integer count, Long writePos) {
+					if (src.hasRemaining()) {
+						long nextPos = writePos.longValue() + count.intValue();
+						current.write(src, nextPos, Long.valueOf(nextPos), this);
+					} else {
+						metrics.dataWritten(len);
+						result.complete(null);
+					}
+				}
+				
+				@Override
+				public void failed(Throwable t, Long writePos) {
+					result.completeExceptionally(t);
+				}
+			});
+		} catch (Throwable t) {
+			result.completeExceptionally(t);
+		}
+		return result;
+	}
+	
+	/**
+	 * closes the channel; operations still in flight fail
+	 */
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		store = null;
+	}
+	
+	private AsynchronousFileChannel getChannel() throws IOException {
+		AsynchronousFileChannel current = channel;
+		if (current == null) {
+			synchronized (this) {
+				if (store == null) {
+					throw new IOException("MultiFile closed");
+				}
+				if (channel == null) {
+					channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+				current = channel;
+			}
+		}
+		return current;
+	}
+	
+	public String toString() {
+		return "MFAsyncChannel[FILE: " + file + " OPEN: " + (channel != null) + "]";
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * collects the data of one stream of a batch in memory, handing it to the batch to 
+ * be laid out in the container once the stream is closed
+ */
+class MFBatchOutputStream extends OutputStream {
+	
+	private MultiFileBatch batch;
+	private String streamName;
+	private byte[] buffer;
+	private int bufferSize;
+	
+	public MFBatchOutputStream(MultiFileBatch multiFileBatch, String name) {
+		batch = multiFileBatch;
+		streamName = name;
+		buffer = new byte[256];
+		bufferSize = 0;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if (batch == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		ensureCapacity(bufferSize + 1);
+		buffer[bufferSize++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (batch == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		ensureCapacity(bufferSize + len);
+		System.arraycopy(b, off, buffer, bufferSize, len);
+		bufferSize += len;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (batch != null) {
+			batch.writeStream(streamName, buffer, bufferSize);
+			batch = null;
+			buffer = null;
+		}
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+		}
+	}
+}
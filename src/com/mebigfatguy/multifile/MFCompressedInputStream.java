@@ -0,0 +1,291 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * reads a stream written by MFCompressedOutputStream. The chunk index is loaded when
+ * the stream is opened, so moving to any position only costs inflating the one chunk
+ * that holds it, when it is next read from. A stream that is still being written has
+ * no data yet, and reads as empty.
+ */
+class MFCompressedInputStream extends SeekableInputStream {
+
+	SeekableInputStream raw;
+	Inflater inflater;
+	long[] chunkStarts;
+	int[] chunkLengths;
+	int chunkSize;
+	long length;
+	long position;
+	byte[] chunk;
+	byte[] compressed;
+	int chunkIndex;
+	int chunkLength;
+	long mark;
+	
+	public MFCompressedInputStream(BlockStore blockStore, StreamBlock streamBlock) throws IOException {
+		this(new MFInputStream(blockStore, streamBlock));
+	}
+	
+	/**
+	 * @param rawStream the stream's data as stored, chunks, index and trailer
+	 */
+	public MFCompressedInputStream(SeekableInputStream rawStream) throws IOException {
+		raw = rawStream;
+		long rawSize = raw.size();
+		if (rawSize == 0) {
+			chunkStarts = new long[0];
+			chunkLengths = new int[0];
+			chunkSize = MFCompressedOutputStream.CHUNKSIZE;
+			length = 0;
+		} else {
+			readIndex(rawSize);
+		}
+		
+		inflater = new Inflater();
+		position = 0;
+		chunk = null;
+		compressed = null;
+		chunkIndex = -1;
+		chunkLength = 0;
+		mark = -1;
+	}
+	
+	private void readIndex(long rawSize) throws IOException {
+		if (rawSize < MFCompressedOutputStream.TRAILERSIZE) {
+			throw new IOException("Compressed stream is missing its chunk index");
+		}
+		
+		DataInputStream dis = new DataInputStream(raw);
+		raw.position(rawSize - MFCompressedOutputStream.TRAILERSIZE);
+		chunkSize = dis.readInt();
+		length = dis.readLong();
+		int chunkCount = dis.readInt();
+		
+		chunkStarts = new long[chunkCount];
+		chunkLengths = new int[chunkCount];
+		raw.position(rawSize - MFCompressedOutputStream.TRAILERSIZE - (4L * chunkCount));
+		long start = 0;
+		for (int i = 0; i < chunkCount; i++) {
+			chunkStarts[i] = start;
+			chunkLengths[i] = dis.readInt();
+			start += chunkLengths[i];
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (raw == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (position >= length) {
+			return -1;
+		}
+		
+		int offset = loadChunk();
+		position++;
+		return chunk[offset] & 0x00FF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (raw == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (len == 0) {
+			return 0;
+		}
+		
+		if (position >= length) {
+			return -1;
+		}
+		
+		len = (int) Math.min(len, length - position);
+		int readLen = 0;
+		while (len > 0) {
+			int offset = loadChunk();
+			int copyLen = Math.min(len, chunkLength - offset);
+			System.arraycopy(chunk, offset, b, off, copyLen);
+			position += copyLen;
+			off += copyLen;
+			len -= copyLen;
+			readLen += copyLen;
+		}
+		
+		return readLen;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (raw == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (n <= 0) {
+			return 0;
+		}
+		
+		long skipped = Math.max(0, Math.min(n, length - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public long position() throws IOException {
+		if (raw == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		return position;
+	}
+	
+	@Override
+	public void position(long newPosition) throws IOException {
+		if (raw == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative stream position: " + newPosition);
+		}
+		
+		position = newPosition;
+	}
+	
+	@Override
+	public long size() throws IOException {
+		if (raw == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		return length;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if (raw == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, length - position));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (raw != null) {
+			raw.close();
+			raw = null;
+			inflater.end();
+			inflater = null;
+			chunk = null;
+			compressed = null;
+		}
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		if (mark < 0) {
+			throw new IOException("Mark never set");
+		}
+		
+		position = mark;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+	
+	/**
+	 * makes sure the chunk holding the current position is decompressed
+	 * 
+	 * @return the offset of the current position within the chunk
+	 */
+	private int loadChunk() throws IOException {
+		int index = (int) (position / chunkSize);
+		if (index != chunkIndex) {
+			if (chunk == null) {
+				chunk = new byte[chunkSize];
+				compressed = new byte[chunkSize];
+			}
+			
+			chunkIndex = -1;
+			chunkLength = (int) Math.min(chunkSize, length - ((long) index) * chunkSize);
+			int compressedLength = chunkLengths[index];
+			raw.position(chunkStarts[index]);
+			readFully(compressedLength);
+			
+			if (compressedLength == chunkLength) {
+				System.arraycopy(compressed, 0, chunk, 0, chunkLength);
+			} else {
+				inflate(compressedLength);
+			}
+			chunkIndex = index;
+		}
+		
+		return (int) (position - ((long) chunkIndex) * chunkSize);
+	}
+	
+	private void readFully(int len) throws IOException {
+		int readLen = 0;
+		while (readLen < len) {
+			int chunkRead = raw.read(compressed, readLen, len - readLen);
+			if (chunkRead < 0) {
+				throw new IOException("Compressed stream truncated at chunk " + (position / chunkSize));
+			}
+			readLen += chunkRead;
+		}
+	}
+	
+	private void inflate(int compressedLength) throws IOException {
+		try {
+			inflater.reset();
+			inflater.setInput(compressed, 0, compressedLength);
+			int inflated = 0;
+			while (inflated < chunkLength) {
+				int len = inflater.inflate(chunk, inflated, chunkLength - inflated);
+				if ((len == 0) && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				inflated += len;
+			}
+			if (inflated != chunkLength) {
+				throw new IOException("Compressed chunk " + (position / chunkSize) + " inflated to " + inflated + " bytes, expected " + chunkLength);
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("Compressed chunk " + (position / chunkSize) + " is corrupt: " + dfe.getMessage());
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * writes a stream in chunks of CHUNKSIZE bytes, each deflated on its own, so that a 
+ * reader can decompress just the chunk holding a position. A chunk that does not 
+ * shrink is stored as is. When the stream is closed, the compressed length of each 
+ * chunk is appended, followed by a trailer of the chunk size, the uncompressed length 
+ * of the stream and the number of chunks.
+ * <p>
+ * The stream block is marked compressed from the start, but is only written when the
+ * stream is closed, once the chunk index is in place, so until then readers see an 
+ * empty stream. Flushing does not publish the chunks written so far, nor cut the 
+ * current chunk short. A stream closed before filling its first chunk, and small 
+ * enough to be kept inline, is stored uncompressed instead.
+ */
+class MFCompressedOutputStream extends MFOutputStream {
+	
+	static final int CHUNKSIZE = 64 * 1024;
+	static final int TRAILERSIZE = 4 + 8 + 4;
+	
+	private byte[] chunk;
+	private int chunkUsed;
+	private byte[] compressed;
+	private Deflater deflater;
+	private int[] chunkLengths;
+	private int chunkCount;
+	private long length;
+	private int inlineLimit;
+	
+	public MFCompressedOutputStream(MultiFile multiFile, String streamName, long offset) throws IOException {
+		super(multiFile, streamName, offset);
+		chunk = new byte[CHUNKSIZE];
+		chunkUsed = 0;
+		compressed = new byte[CHUNKSIZE];
+		deflater = new Deflater();
+		chunkLengths = new int[16];
+		chunkCount = 0;
+		length = 0;
+		inlineLimit = DirectoryEntry.getInlineLimit(multiFile.store.getBlockSize());
+		setCompressed(true);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if (chunk == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		chunk[chunkUsed++] = (byte) b;
+		length++;
+		if (chunkUsed == CHUNKSIZE) {
+			writeChunk();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (chunk == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		while (len > 0) {
+			int copyLen = Math.min(len, CHUNKSIZE - chunkUsed);
+			System.arraycopy(b, off, chunk, chunkUsed, copyLen);
+			chunkUsed += copyLen;
+			length += copyLen;
+			off += copyLen;
+			len -= copyLen;
+			if (chunkUsed == CHUNKSIZE) {
+				writeChunk();
+			}
+		}
+	}
+
+	/**
+	 * does nothing more than check the stream is open, as the stream block is only 
+	 * written once the chunk index is
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (chunk == null) {
+			throw new IOException("Stream already closed");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (chunk != null) {
+			try {
+				if ((chunkCount == 0) && (chunkUsed <= inlineLimit)) {
+					setCompressed(false);
+					super.write(chunk, 0, chunkUsed);
+				} else {
+					if (chunkUsed > 0) {
+						writeChunk();
+					}
+					writeIndex();
+				}
+			} finally {
+				deflater.end();
+				deflater = null;
+				chunk = null;
+				compressed = null;
+			}
+			super.close();
+		}
+	}
+	
+	/**
+	 * deflates the current chunk into the stream, or copies it when deflating does not
+	 * make it any smaller
+	 */
+	private void writeChunk() throws IOException {
+		deflater.reset();
+		deflater.setInput(chunk, 0, chunkUsed);
+		deflater.finish();
+		int compressedLen = 0;
+		while (!deflater.finished() && (compressedLen < chunkUsed)) {
+			compressedLen += deflater.deflate(compressed, compressedLen, compressed.length - compressedLen);
+		}
+		
+		if (deflater.finished() && (compressedLen < chunkUsed)) {
+			super.write(compressed, 0, compressedLen);
+		} else {
+			compressedLen = chunkUsed;
+			super.write(chunk, 0, chunkUsed);
+		}
+		
+		if (chunkCount == chunkLengths.length) {
+			chunkLengths = Arrays.copyOf(chunkLengths, chunkCount * 2);
+		}
+		chunkLengths[chunkCount++] = compressedLen;
+		chunkUsed = 0;
+	}
+	
+	private void writeIndex() throws IOException {
+		byte[] index = new byte[(4 * chunkCount) + TRAILERSIZE];
+		int pos = 0;
+		for (int i = 0; i < chunkCount; i++) {
+			pos = putInt(index, pos, chunkLengths[i]);
+		}
+		pos = putInt(index, pos, CHUNKSIZE);
+		pos = putInt(index, pos, (int) (length >>> 32));
+		pos = putInt(index, pos, (int) length);
+		putInt(index, pos, chunkCount);
+		super.write(index, 0, index.length);
+	}
+	
+	private static int putInt(byte[] b, int pos, int value) {
+		b[pos] = (byte) (value >>> 24);
+		b[pos + 1] = (byte) (value >>> 16);
+		b[pos + 2] = (byte) (value >>> 8);
+		b[pos + 3] = (byte) value;
+		return pos + 4;
+	}
+}
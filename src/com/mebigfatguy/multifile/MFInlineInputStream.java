@@ -0,0 +1,154 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+
+/**
+ * reads a stream whose data is kept inline in its directory entry, so no blocks of 
+ * the container are involved at all
+ */
+class MFInlineInputStream extends SeekableInputStream {
+
+	byte[] data;
+	int position;
+	int mark;
+	
+	public MFInlineInputStream(byte[] inlineData) {
+		data = inlineData;
+		position = 0;
+		mark = -1;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (data == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (position >= data.length) {
+			return -1;
+		}
+		
+		return data[position++] & 0x00FF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (data == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (len == 0) {
+			return 0;
+		}
+		
+		if (position >= data.length) {
+			return -1;
+		}
+		
+		len = Math.min(len, data.length - position);
+		System.arraycopy(data, position, b, off, len);
+		position += len;
+		return len;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (data == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (n <= 0) {
+			return 0;
+		}
+		
+		int skipped = (int) Math.max(0, Math.min(n, data.length - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public long position() throws IOException {
+		if (data == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		return position;
+	}
+	
+	@Override
+	public void position(long newPosition) throws IOException {
+		if (data == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative stream position: " + newPosition);
+		}
+		
+		position = (int) Math.min(newPosition, data.length);
+	}
+	
+	@Override
+	public long size() throws IOException {
+		if (data == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		return data.length;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if (data == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		return Math.max(0, data.length - position);
+	}
+
+	@Override
+	public void close() throws IOException {
+		data = null;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		if (mark < 0) {
+			throw new IOException("Mark never set");
+		}
+		
+		position = mark;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+}
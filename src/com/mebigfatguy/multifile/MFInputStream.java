@@ -17,31 +17,82 @@
  */
 package com.mebigfatguy.multifile;
 
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
 
-class MFInputStream extends InputStream {
+/**
+ * reads a stream straight from the store's mapping of its extents. Instances are 
+ * meant for one thread each; many of them, over the same stream or different ones, 
+ * can be read in parallel as they share nothing but the store.
+ * <p>
+ * While reads follow on from one another, the data ahead of them is requested from 
+ * the store in the background, see BlockStore.readAhead. The read-ahead window 
+ * doubles each time it is renewed, up to the store's limit, and is halved by each 
+ * read that does not continue where the last one stopped. Once it has shrunk below 
+ * MINREADAHEAD, it is dropped, and only started again, at MINREADAHEAD, after two 
+ * sequential reads in a row.
+ */
+class MFInputStream extends SeekableInputStream {
+	
+	private static final int MINREADAHEAD = 64 * 1024;
 
-	RandomAccessFile raFile;
-	long currentOffset;
+	BlockStore store;
+	List<Extent> extents;
+	long[] extentStarts;
+	long length;
+	long position;
+	int extentIndex;
+	byte[] buffer;
+	long bufferStart;
+	int bufferLength;
 	long mark;
+	long nextPosition;
+	long readAheadEnd;
+	long readAheadWindow;
+	int sequentialReads;
 	
-	public MFInputStream(RandomAccessFile file, long offset) {
-		raFile = file;
-		currentOffset = offset + BlockHeader.BLOCKHEADERSIZE;
-		mark = 0;
+	public MFInputStream(BlockStore blockStore, long offset) throws IOException {
+		this(blockStore, readStreamBlock(blockStore, offset));
+	}
+	
+	public MFInputStream(BlockStore blockStore, StreamBlock streamBlock) {
+		store = blockStore;
+		extents = streamBlock.getExtents();
+		extentStarts = new long[extents.size()];
+		long start = 0;
+		for (int i = 0; i < extentStarts.length; i++) {
+			extentStarts[i] = start;
+			start += extents.get(i).getLength();
+		}
+		length = streamBlock.getLength();
+		position = 0;
+		extentIndex = 0;
+		buffer = null;
+		bufferStart = 0;
+		bufferLength = 0;
+		mark = -1;
+		nextPosition = -1;
+		readAheadEnd = 0;
+		readAheadWindow = 0;
+		sequentialReads = 0;
 	}
 	
 	@Override
-	public int read() throws IOException {	
-		byte[] data = new byte[1];	
-		int len = read(data, 0, 1);
-		if (len == 0)
+	public int read() throws IOException {
+		if (store == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		if (position >= length) {
 			return -1;
+		}
 		
-		return data[0] & 0x00FF;
+		if ((position < bufferStart) || (position >= (bufferStart + bufferLength))) {
+			fillBuffer();
+		}
+		
+		return buffer[(int) (position++ - bufferStart)] & 0x00FF;
 	}
 
 	@Override
@@ -51,96 +102,220 @@ class MFInputStream extends InputStream {
 
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("Stream already closed");
 		}
 		
-		if (currentOffset == 0) {
-			throw new EOFException("End of file reached");
+		if (len == 0) {
+			return 0;
 		}
 		
-		long currentBlockOffset = (currentOffset / MultiFile.BLOCKSIZE) * MultiFile.BLOCKSIZE;
-		FileBlock block = new FileBlock(currentBlockOffset);
-		block.read(raFile);
+		if (position >= length) {
+			return -1;
+		}
 		
-		int availableInBlock = (int)(block.getSize() - (currentOffset - currentBlockOffset - BlockHeader.BLOCKHEADERSIZE));
-		int readLen = Math.min(len, availableInBlock);
+		len = (int) Math.min(len, length - position);
+		readAhead(position + len);
+		int readLen = 0;
 		
-		raFile.seek(currentOffset);
-		raFile.read(b, off, readLen);
-		currentOffset += readLen;
+		if ((position >= bufferStart) && (position < (bufferStart + bufferLength))) {
+			int chunk = (int) Math.min(len, bufferStart + bufferLength - position);
+			System.arraycopy(buffer, (int) (position - bufferStart), b, off, chunk);
+			position += chunk;
+			off += chunk;
+			len -= chunk;
+			readLen += chunk;
+		}
 		
-		if (currentOffset == (currentBlockOffset + MultiFile.BLOCKSIZE)) {
-			long next = block.getHeader().getNextBlock();
-			if (next == 0) {
-				currentOffset = 0;
-			} else {
-				currentOffset = next + BlockHeader.BLOCKHEADERSIZE;
-			}
+		while (len > 0) {
+			int chunk = readExtent(b, off, len);
+			position += chunk;
+			off += chunk;
+			len -= chunk;
+			readLen += chunk;
 		}
+		
 		return readLen;
 	}
 
 	@Override
 	public long skip(long n) throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("Stream already closed");
 		}
 		
-		if (currentOffset == 0) {
-			throw new EOFException("End of file reached");
+		if (n <= 0) {
+			return 0;
 		}
 		
-		long currentBlockOffset = (currentOffset / MultiFile.BLOCKSIZE) * MultiFile.BLOCKSIZE;
-		FileBlock block = new FileBlock(currentBlockOffset);
-		block.read(raFile);
+		long skipped = Math.max(0, Math.min(n, length - position));
+		position += skipped;
+		store.getMetrics().seek();
+		return skipped;
+	}
+
+	@Override
+	public long position() throws IOException {
+		if (store == null) {
+			throw new IOException("Stream already closed");
+		}
 		
-		int availableInBlock = (int)(block.getSize() - (currentOffset - currentBlockOffset - BlockHeader.BLOCKHEADERSIZE));
-		if (n < availableInBlock) {
-			currentOffset += n;
-			return n;
-		} else {
-			long next = block.getHeader().getNextBlock();
-			if (next != 0) {
-				currentOffset = next + BlockHeader.BLOCKHEADERSIZE;
-				return availableInBlock;
-			}
-			
-			currentOffset = 0;
-			return 0;
+		return position;
+	}
+	
+	@Override
+	public void position(long newPosition) throws IOException {
+		if (store == null) {
+			throw new IOException("Stream already closed");
 		}
+		
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative stream position: " + newPosition);
+		}
+		
+		position = newPosition;
+		store.getMetrics().seek();
 	}
-
+	
+	@Override
+	public long size() throws IOException {
+		if (store == null) {
+			throw new IOException("Stream already closed");
+		}
+		
+		return length;
+	}
+	
 	@Override
 	public int available() throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("Stream already closed");
 		}
 		
-		throw new UnsupportedOperationException();
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, length - position));
 	}
 
 	@Override
 	public void close() throws IOException {
-		raFile = null;
+		store = null;
+		buffer = null;
 	}
 
 	@Override
 	public synchronized void mark(int readlimit) {
-		mark = currentOffset;
+		mark = position;
 	}
 
 	@Override
 	public synchronized void reset() throws IOException {
-		if (mark == 0) {
+		if (mark < 0) {
 			throw new IOException("Mark never set");
 		}
 		
-		currentOffset = mark;
+		position = mark;
 	}
 
 	@Override
 	public boolean markSupported() {
 		return true;
 	}
-}
\ No newline at end of file
+	
+	private static StreamBlock readStreamBlock(BlockStore blockStore, long offset) throws IOException {
+		StreamBlock streamBlock = new StreamBlock(offset);
+		streamBlock.read(blockStore);
+		return streamBlock;
+	}
+	
+	/**
+	 * loads the bytes that follow the current position, up to a block's worth or the 
+	 * end of the extent holding them, so that single byte reads are served from memory
+	 */
+	private void fillBuffer() throws IOException {
+		if (buffer == null) {
+			buffer = new byte[store.getBlockSize()];
+		}
+		
+		bufferStart = position;
+		bufferLength = readExtent(buffer, 0, buffer.length);
+		readAhead(position + bufferLength);
+	}
+	
+	/**
+	 * follows the access pattern with a read from the current position, and if reads 
+	 * have been sequential, requests the data past the read, unless enough of it has 
+	 * been requested already
+	 * 
+	 * @param readEnd the position the read stops at
+	 */
+	private void readAhead(long readEnd) {
+		boolean sequential = (position == nextPosition);
+		nextPosition = readEnd;
+		int maxReadAhead = store.getMaxReadAhead();
+		if (!sequential || (maxReadAhead == 0)) {
+			sequentialReads = 0;
+			readAheadWindow /= 2;
+			if (readAheadWindow < MINREADAHEAD) {
+				readAheadWindow = 0;
+			}
+			readAheadEnd = readEnd;
+			return;
+		}
+		
+		if (readAheadWindow == 0) {
+			if (++sequentialReads < 2) {
+				return;
+			}
+			readAheadWindow = MINREADAHEAD;
+		}
+		readAheadWindow = Math.min(readAheadWindow, maxReadAhead);
+		if ((readAheadEnd - readEnd) > (readAheadWindow / 2)) {
+			return;
+		}
+		
+		long start = Math.max(readAheadEnd, readEnd);
+		long end = Math.min(length, readEnd + readAheadWindow);
+		readAheadEnd = Math.max(start, end);
+		readAheadWindow = Math.min(readAheadWindow * 2, maxReadAhead);
+		
+		int index = Arrays.binarySearch(extentStarts, start);
+		for (index = (index >= 0) ? index : (-index - 2); (index < extentStarts.length) && (extentStarts[index] < end); index++) {
+			Extent extent = extents.get(index);
+			long from = Math.max(start, extentStarts[index]);
+			long to = Math.min(end, extentStarts[index] + extent.getLength());
+			store.readAhead(extent.getOffset() + (from - extentStarts[index]), to - from);
+		}
+	}
+	
+	/**
+	 * reads from the extent holding the current position, without moving the position
+	 * 
+	 * @return the number of bytes read, which stops at the end of the extent
+	 */
+	private int readExtent(byte[] b, int off, int len) throws IOException {
+		locateExtent();
+		Extent extent = extents.get(extentIndex);
+		long extentPos = position - extentStarts[extentIndex];
+		int chunk = (int) Math.min(len, Math.min(extent.getLength() - extentPos, length - position));
+		store.readData(extent.getOffset() + extentPos, b, off, chunk);
+		return chunk;
+	}
+	
+	/**
+	 * points extentIndex at the extent holding the current position, checking the 
+	 * current and following extents before searching the whole list
+	 */
+	private void locateExtent() {
+		if (position >= extentStarts[extentIndex]) {
+			if ((extentIndex + 1 == extentStarts.length) || (position < extentStarts[extentIndex + 1])) {
+				return;
+			}
+			if ((extentIndex + 2 == extentStarts.length) || (position < extentStarts[extentIndex + 2])) {
+				extentIndex++;
+				return;
+			}
+		}
+		
+		int index = Arrays.binarySearch(extentStarts, position);
+		extentIndex = (index >= 0) ? index : (-index - 2);
+	}
+}
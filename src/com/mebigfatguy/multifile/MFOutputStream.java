@@ -19,32 +19,92 @@ package com.mebigfatguy.multifile;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
 
 class MFOutputStream extends OutputStream {
+	
+	private static final long MAXEXTENTSIZE = 8 * 1024 * 1024;
 
-	private RandomAccessFile raFile;
-	private long currentBlockOffset;
+	private MultiFile owner;
+	private String name;
+	private BlockStore store;
+	private ExtentAllocator allocator;
+	private StreamBlock streamBlock;
+	private DirectoryEntry published;
+	private Extent extent;
+	private long extentUsed;
+	private int nextExtentBlocks;
+	private int maxExtentBlocks;
+	private byte[] buffer;
+	private int bufferSize;
+	
+	public MFOutputStream(MultiFile multiFile, String streamName, long offset) throws IOException {
+		this(multiFile, streamName, new StreamBlock(offset));
+	}
+	
+	/**
+	 * opens a stream that continues an existing one, as read from its stream block. 
+	 * Writing starts in the unused end of the stream's last block, if any, unless that
+	 * block is shared with a clone of the stream.
+	 */
+	public MFOutputStream(MultiFile multiFile, String streamName, StreamBlock stream) {
+		this(multiFile, streamName, stream, DirectoryEntry.forStream(stream.offset));
+	}
+	
+	/**
+	 * opens a stream on a new stream block that continues an inline stream. The inline 
+	 * data starts out in the buffer, and the directory keeps the inline entry until the
+	 * stream is first flushed or closed.
+	 */
+	public MFOutputStream(MultiFile multiFile, String streamName, long offset, DirectoryEntry inlineEntry) {
+		this(multiFile, streamName, new StreamBlock(offset), inlineEntry);
+		byte[] data = inlineEntry.getData();
+		System.arraycopy(data, 0, buffer, 0, data.length);
+		bufferSize = data.length;
+	}
 	
-	public MFOutputStream(RandomAccessFile file, long offset) throws IOException {
-		raFile = file;
-		currentBlockOffset = offset;
-		FileBlock block = new FileBlock(offset);
-		block.write(raFile);
+	private MFOutputStream(MultiFile multiFile, String streamName, StreamBlock stream, DirectoryEntry entry) {
+		owner = multiFile;
+		name = streamName;
+		store = multiFile.store;
+		allocator = multiFile.allocator;
+		streamBlock = stream;
+		published = entry;
+		
+		int blockSize = store.getBlockSize();
+		extent = null;
+		extentUsed = 0;
+		List<Extent> extents = stream.getExtents();
+		if (!extents.isEmpty()) {
+			Extent last = extents.get(extents.size() - 1);
+			long lastBlock = last.getBlockEnd(blockSize) - blockSize;
+			if ((last.getEnd() < (lastBlock + blockSize)) && !allocator.isShared(lastBlock, blockSize)) {
+				extent = new Extent(lastBlock, blockSize);
+				extentUsed = last.getEnd() - lastBlock;
+			}
+		}
+		nextExtentBlocks = 1;
+		maxExtentBlocks = (int) Math.max(1, MAXEXTENTSIZE / blockSize);
+		buffer = new byte[blockSize];
+		bufferSize = 0;
 	}
 	
 	@Override
 	public void write(int b) throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("Stream already closed");
 		}
 		
-		write(new byte[] { (byte) b }, 0, 1);
+		if (bufferSize == buffer.length) {
+			flushBuffer();
+		}
+		buffer[bufferSize++] = (byte) b;
 	}
 
 	@Override
 	public void write(byte[] b) throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("Stream already closed");
 		}
 		
@@ -53,29 +113,187 @@ class MFOutputStream extends OutputStream {
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("Stream already closed");
 		}
 		
-		FileBlock block = new FileBlock(currentBlockOffset);
-		block.read(raFile);
-		int writeLen = block.writeStream(raFile, b, off, len);
-		off += writeLen;
-		len -= writeLen;
+		if ((bufferSize + len) > buffer.length) {
+			flushBuffer();
+			if (len >= buffer.length) {
+				writeData(b, off, len);
+				return;
+			}
+		}
 		
-		while (len > 0) {
-			currentBlockOffset = raFile.length();
-			block.getHeader().setNextBlock(currentBlockOffset);
-			block.write(raFile);
-			FileBlock newBlock = new FileBlock(currentBlockOffset);
-			writeLen = newBlock.writeStream(raFile, b, off, len);
-			off += writeLen;
-			len -= writeLen;
+		System.arraycopy(b, off, buffer, bufferSize, len);
+		bufferSize += len;
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		if (store == null) {
+			throw new IOException("Stream already closed");
 		}
+		
+		flushBuffer();
+		store.beginUpdate();
+		try {
+			writeStreamBlock();
+		} finally {
+			store.endUpdate(true);
+		}
+		publish();
 	}
 
 	@Override
 	public void close() throws IOException {
-		raFile = null;
+		if (store != null) {
+			if (!closeInline()) {
+				flushBuffer();
+				store.beginUpdate();
+				try {
+					releaseUnusedBlocks();
+					writeStreamBlock();
+				} finally {
+					store.endUpdate(true);
+				}
+				publish();
+			}
+			detach();
+		}
+	}
+	
+	/**
+	 * marks whether the stream is compressed, from when its stream block is next written
+	 */
+	void setCompressed(boolean compressed) {
+		streamBlock.setCompressed(compressed);
+	}
+	
+	long getStreamBlockOffset() {
+		return streamBlock.offset;
+	}
+	
+	/**
+	 * @return whether this stream continues the named inline stream, and has not yet
+	 * replaced its directory entry
+	 */
+	boolean continuesInline(String streamName) {
+		return published.isInline() && name.equals(streamName);
+	}
+	
+	/**
+	 * moves a stream that never outgrew its buffer into its directory entry, and 
+	 * releases its stream block. This is not done when the directory entry has 
+	 * changed since the stream was opened, or the data has already been flushed.
+	 * 
+	 * @return whether the stream was stored inline
+	 */
+	private boolean closeInline() throws IOException {
+		int blockSize = store.getBlockSize();
+		if ((extent != null) || streamBlock.isCompressed() || (streamBlock.getLength() > 0) || (bufferSize > DirectoryEntry.getInlineLimit(blockSize))) {
+			return false;
+		}
+		
+		DirectoryEntry entry = DirectoryEntry.forData(Arrays.copyOf(buffer, bufferSize));
+		if (!DirectoryBucket.fits(name, entry, blockSize)) {
+			return false;
+		}
+		
+		store.beginUpdate();
+		try {
+			if (!owner.directory.replace(name, published, entry)) {
+				return false;
+			}
+			streamBlock.free(allocator, blockSize);
+		} finally {
+			store.endUpdate(true);
+		}
+		return true;
+	}
+	
+	/**
+	 * points the directory at the stream block, in place of the inline entry the stream
+	 * continues, once the block has been written. If the inline stream was rewritten or
+	 * deleted in the meantime, the appended stream is dropped and its blocks freed.
+	 */
+	private void publish() throws IOException {
+		if (!published.isInline()) {
+			return;
+		}
+		
+		DirectoryEntry entry = DirectoryEntry.forStream(streamBlock.offset);
+		store.beginUpdate();
+		try {
+			if (owner.directory.replace(name, published, entry)) {
+				published = entry;
+				return;
+			}
+			releaseUnusedBlocks();
+			streamBlock.free(allocator, store.getBlockSize());
+		} finally {
+			store.endUpdate(true);
+		}
+		detach();
+		throw new IOException("Stream " + name + " was replaced while it was being appended to");
+	}
+	
+	private void detach() {
+		owner.writeStreamClosed(this);
+		owner = null;
+		store = null;
+		allocator = null;
+		buffer = null;
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (bufferSize > 0) {
+			writeData(buffer, 0, bufferSize);
+			bufferSize = 0;
+		}
+	}
+	
+	/**
+	 * writes data into the current extent, asking the allocator for further extents 
+	 * as each one fills. Extents double in size as the stream grows, or are sized to 
+	 * a large write, up to MAXEXTENTSIZE.
+	 */
+	private void writeData(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if ((extent == null) || (extentUsed == extent.getLength())) {
+				int blockSize = store.getBlockSize();
+				int lenBlocks = Math.min(maxExtentBlocks, (len + blockSize - 1) / blockSize);
+				store.beginUpdate();
+				try {
+					extent = allocator.allocate(Math.max(nextExtentBlocks, lenBlocks));
+				} finally {
+					store.endUpdate(false);
+				}
+				extentUsed = 0;
+				nextExtentBlocks = Math.min(nextExtentBlocks * 2, maxExtentBlocks);
+			}
+			
+			int writeLen = (int) Math.min(len, extent.getLength() - extentUsed);
+			long pos = extent.getOffset() + extentUsed;
+			store.writeData(pos, b, off, writeLen);
+			streamBlock.addExtent(pos, writeLen);
+			extentUsed += writeLen;
+			off += writeLen;
+			len -= writeLen;
+		}
+	}
+	
+	private void releaseUnusedBlocks() throws IOException {
+		if (extent != null) {
+			int blockSize = store.getBlockSize();
+			long usedLength = ((extentUsed + blockSize - 1) / blockSize) * blockSize;
+			allocator.free(extent.getOffset() + usedLength, extent.getLength() - usedLength);
+			extent = null;
+		}
+	}
+	
+	private void writeStreamBlock() throws IOException {
+		streamBlock.allocateContinuations(allocator, store.getBlockSize());
+		streamBlock.write(store);
 	}
-}
\ No newline at end of file
+}
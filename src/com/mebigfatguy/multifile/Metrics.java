@@ -0,0 +1,242 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * the counters behind MultiFileMetrics. Every update first checks whether metrics 
+ * are enabled, so that with metrics off the cost of instrumentation is one well 
+ * predicted branch.
+ */
+class Metrics implements MultiFileMetrics {
+
+	private final boolean enabled;
+	private volatile ExtentAllocator allocator;
+	private final AtomicLong headerReads = new AtomicLong();
+	private final AtomicLong headerWrites = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong seeks = new AtomicLong();
+	private final AtomicLong readAheadBytes = new AtomicLong();
+	private final AtomicLong lengthChanges = new AtomicLong();
+	private final AtomicLong mappingGrowths = new AtomicLong();
+	private final AtomicLong directoryLookups = new AtomicLong();
+	private final AtomicLong directoryBlockReads = new AtomicLong();
+	private final AtomicLong directoryCacheHits = new AtomicLong();
+	private final AtomicLong directoryCacheMisses = new AtomicLong();
+	private final AtomicLong endOfFileAllocations = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+	private final AtomicLong syncNanos = new AtomicLong();
+	
+	public Metrics(boolean enableCounters) {
+		enabled = enableCounters;
+	}
+	
+	public void setAllocator(ExtentAllocator extentAllocator) {
+		allocator = extentAllocator;
+	}
+	
+	public void headerRead() {
+		if (enabled) {
+			headerReads.incrementAndGet();
+		}
+	}
+	
+	public void headerWritten() {
+		if (enabled) {
+			headerWrites.incrementAndGet();
+		}
+	}
+	
+	public void dataRead(long len) {
+		if (enabled) {
+			bytesRead.addAndGet(len);
+		}
+	}
+	
+	public void dataWritten(long len) {
+		if (enabled) {
+			bytesWritten.addAndGet(len);
+		}
+	}
+	
+	public void seek() {
+		if (enabled) {
+			seeks.incrementAndGet();
+		}
+	}
+	
+	public void readAhead(long len) {
+		if (enabled) {
+			readAheadBytes.addAndGet(len);
+		}
+	}
+	
+	public void lengthChanged() {
+		if (enabled) {
+			lengthChanges.incrementAndGet();
+		}
+	}
+	
+	public void mappingGrown() {
+		if (enabled) {
+			mappingGrowths.incrementAndGet();
+		}
+	}
+	
+	public void directoryLookup() {
+		if (enabled) {
+			directoryLookups.incrementAndGet();
+		}
+	}
+	
+	public void directoryBlockRead() {
+		if (enabled) {
+			directoryBlockReads.incrementAndGet();
+		}
+	}
+	
+	public void directoryCacheHit() {
+		if (enabled) {
+			directoryCacheHits.incrementAndGet();
+		}
+	}
+	
+	public void directoryCacheMiss() {
+		if (enabled) {
+			directoryCacheMisses.incrementAndGet();
+		}
+	}
+	
+	public void endOfFileAllocation() {
+		if (enabled) {
+			endOfFileAllocations.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * @return the start time to pass to synced, or 0 when metrics are disabled
+	 */
+	public long startSync() {
+		return enabled ? System.nanoTime() : 0;
+	}
+	
+	public void synced(long start) {
+		if (enabled) {
+			syncs.incrementAndGet();
+			syncNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+	
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public long getHeaderReads() {
+		return headerReads.get();
+	}
+
+	@Override
+	public long getHeaderWrites() {
+		return headerWrites.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public long getSeeks() {
+		return seeks.get();
+	}
+
+	@Override
+	public long getReadAheadBytes() {
+		return readAheadBytes.get();
+	}
+
+	@Override
+	public long getLengthChanges() {
+		return lengthChanges.get();
+	}
+
+	@Override
+	public long getMappingGrowths() {
+		return mappingGrowths.get();
+	}
+
+	@Override
+	public long getDirectoryLookups() {
+		return directoryLookups.get();
+	}
+
+	@Override
+	public long getDirectoryBlockReads() {
+		return directoryBlockReads.get();
+	}
+
+	@Override
+	public long getDirectoryCacheHits() {
+		return directoryCacheHits.get();
+	}
+
+	@Override
+	public long getDirectoryCacheMisses() {
+		return directoryCacheMisses.get();
+	}
+
+	@Override
+	public long getEndOfFileAllocations() {
+		return endOfFileAllocations.get();
+	}
+
+	@Override
+	public long getSyncs() {
+		return syncs.get();
+	}
+
+	@Override
+	public long getSyncNanos() {
+		return syncNanos.get();
+	}
+
+	@Override
+	public long getFreeBytes() {
+		ExtentAllocator current = allocator;
+		return (current == null) ? 0 : current.getFreeSize();
+	}
+
+	@Override
+	public int getFreeExtents() {
+		ExtentAllocator current = allocator;
+		return (current == null) ? 0 : current.getFreeExtentCount();
+	}
+	
+	public String toString() {
+		return "Metrics[ENABLED: " + enabled + " HEADERREADS: " + headerReads + " HEADERWRITES: " + headerWrites + " BYTESREAD: " + bytesRead + " BYTESWRITTEN: " + bytesWritten + " SEEKS: " + seeks + " DIRECTORYLOOKUPS: " + directoryLookups + " SYNCS: " + syncs + "]";
+	}
+}
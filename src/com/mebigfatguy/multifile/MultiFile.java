@@ -17,149 +17,968 @@
  */
 package com.mebigfatguy.multifile;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * a single file holding any number of named streams.
+ * <p>
+ * Reading is safe from any number of threads at once: streams may be opened with 
+ * getReadStream or getSeekableStream, and read, concurrently, whether they are 
+ * different streams or the same one. Opening a stream looks it up in the directory,
+ * which shares the table lock and takes the lock of the stream's bucket, see 
+ * DirectoryIndex; only from then on, reading the stream's data from the mapped file,
+ * is free of locking. Each thread must use its own input stream though, as an input 
+ * stream keeps its position and buffer unsynchronized.
+ * <p>
+ * Likewise, any number of threads may write at once, as long as each writes a 
+ * different stream. Writers are registered under a short lock when their stream is 
+ * opened, and otherwise share only the allocator, which is synchronized, and the 
+ * directory, which locks just the bucket being changed; the data of a stream is 
+ * written without any locking. Reading a stream while it is being rewritten or 
+ * deleted, or writing one stream from two threads, is not supported, nor is closing
+ * the MultiFile while it is in use.
+ */
 public class MultiFile {
-	static final int BLOCKSIZE = 512;
 	
-	RandomAccessFile raFile;
-	List<DirectoryBlock> directoryBlocks = new ArrayList<DirectoryBlock>();
-	List<FreeBlock> freeBlocks = new ArrayList<FreeBlock>();
+	private static final int COPYSIZE = 1 << 20;
+	private static final int ASYNCREADSIZE = 1 << 20;
+	
+	BlockStore store;
+	SuperBlock superBlock;
+	ExtentAllocator allocator;
+	DirectoryIndex directory;
+	Journal journal;
+	Metrics metrics;
+	MFAsyncChannel asyncChannel;
+	int directoryCacheSize;
+	ObjectName metricsName;
+	Set<MFOutputStream> writeStreams = Collections.newSetFromMap(new ConcurrentHashMap<MFOutputStream, Boolean>());
+	Set<MultiFileBatch> batches = Collections.newSetFromMap(new ConcurrentHashMap<MultiFileBatch, Boolean>());
+	Set<CompletableFuture<Void>> asyncWrites = Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<Void>, Boolean>());
 	
 	public MultiFile(String path) throws IOException {
 		this(new File(path));
 	}
 	
+	public MultiFile(String path, MultiFileOptions options) throws IOException {
+		this(new File(path), options);
+	}
+	
 	public MultiFile(File file) throws IOException {
-		raFile = new RandomAccessFile(file, "rw");
-		if (raFile.length() > 0) {
-			readDirectory();
-			readFreeBlocks();
+		this(file, new MultiFileOptions());
+	}
+	
+	public MultiFile(File file, MultiFileOptions options) throws IOException {
+		store = new BlockStore(file);
+		directoryCacheSize = options.getDirectoryCacheSize();
+		metrics = new Metrics(options.isMetricsEnabled());
+		store.setMetrics(metrics);
+		store.setMaxReadAhead(options.getReadAhead());
+		allocator = new ExtentAllocator(store);
+		metrics.setAllocator(allocator);
+		if (store.length() > 0) {
+			Journal.replay(store, file);
+			readSuperBlock();
+			boolean freeListValid = (superBlock.getVersion() >= SuperBlock.FREELIST_VERSION) && superBlock.isClean();
+			if (freeListValid) {
+				allocator.readFreeList(superBlock.getFreeListOffset());
+				allocator.readSharedList(superBlock.getSharedListOffset());
+			}
+			
+			if (superBlock.getVersion() < SuperBlock.STREAMBLOCK_VERSION) {
+				upgradeChainedContainer();
+			} else if (superBlock.getVersion() < SuperBlock.INDEX_VERSION) {
+				upgradeLinkedDirectory();
+			} else {
+				readDirectory();
+			}
+			
+			if (!freeListValid) {
+				rebuildFreeList();
+			}
 		} else {
+			writeSuperBlock(options.getBlockSize());
 			writeEmptyDirectory();
+			allocator.writeFreeList();
+		}
+		
+		superBlock = new SuperBlock(SuperBlock.VERSION, store.getBlockSize(), superBlock.getDirectoryOffset());
+		superBlock.setFreeListOffset(allocator.getFreeListOffset());
+		superBlock.setClean(false);
+		superBlock.write(store);
+		
+		if (options.isJournaled()) {
+			store.force();
+			journal = new Journal(store, file);
+			store.setJournal(journal);
+		}
+		
+		asyncChannel = new MFAsyncChannel(file, store);
+		if (options.isMetricsEnabled()) {
+			registerMetrics(file);
 		}
 	}
 	
 	public void close() throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("MultiFile already closed");
 		}
 		
-		raFile.close();
-		raFile = null;
-		directoryBlocks = null;
-		freeBlocks = null;
+		for (MFOutputStream stream : new ArrayList<MFOutputStream>(writeStreams)) {
+			stream.close();
+		}
+		for (MultiFileBatch batch : new ArrayList<MultiFileBatch>(batches)) {
+			batch.abort();
+		}
+		for (CompletableFuture<Void> write : new ArrayList<CompletableFuture<Void>>(asyncWrites)) {
+			try {
+				write.join();
+			} catch (CompletionException ce) {
+				// a write that failed has freed its blocks already
+			}
+		}
+		asyncChannel.close();
+		
+		store.beginUpdate();
+		try {
+			allocator.reclaim();
+			superBlock.setSharedListOffset(allocator.writeSharedList());
+			superBlock.setFreeListOffset(allocator.getFreeListOffset());
+			superBlock.setClean(true);
+			superBlock.write(store);
+		} finally {
+			store.endUpdate(true);
+		}
+		if (journal != null) {
+			journal.close();
+			store.setJournal(null);
+			journal = null;
+		}
+		unregisterMetrics();
+		store.close();
+		store = null;
+		superBlock = null;
+		allocator = null;
+		directory = null;
+		writeStreams = null;
+		batches = null;
+		asyncWrites = null;
+		asyncChannel = null;
+	}
+	
+	/**
+	 * @return the I/O counters of this container, which stay readable after it is closed
+	 */
+	public MultiFileMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the name the metrics are registered under with the platform MBean server,
+	 * or null if metrics are not enabled or the container is closed
+	 */
+	public ObjectName getMetricsName() {
+		return metricsName;
 	}
 	
 	public Collection<String> getStreamNames() throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		Set<String> streamNames = new TreeSet<String>();
-		for (DirectoryBlock block : directoryBlocks) {
-			streamNames.addAll(block.getStreamNames());
-		}
-		return streamNames;
+		return directory.getStreamNames();
 	}
 	
 	public InputStream getReadStream(String streamName) throws IOException {
-		if (raFile == null) {
+		return getSeekableStream(streamName);
+	}
+	
+	/**
+	 * opens a stream for reading at arbitrary positions. The stream's extents are 
+	 * indexed when it is opened, so each repositioning is a binary search over them,
+	 * rather than a walk through the data.
+	 */
+	public SeekableInputStream getSeekableStream(String streamName) throws IOException {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		for (DirectoryBlock block : directoryBlocks) {
-			Long offset = block.getStreamOffset(streamName);
-			if (offset != null) {
-				return new MFInputStream(raFile, offset.longValue());
+		DirectoryEntry entry = directory.get(streamName);
+		if (entry != null) {
+			if (entry.isInline()) {
+				return new MFInlineInputStream(entry.getData());
 			}
+			StreamBlock stream = new StreamBlock(entry.getStreamOffset());
+			stream.read(store);
+			if (stream.isCompressed()) {
+				return new MFCompressedInputStream(store, stream);
+			}
+			return new MFInputStream(store, stream);
 		}
 		
 		throw new FileNotFoundException("Failed to find stream " + streamName);
 	}
 	
 	public OutputStream getWriteStream(String streamName) throws IOException {
-		if (raFile == null) {
+		return getWriteStream(streamName, false);
+	}
+	
+	/**
+	 * opens a stream that creates, or replaces, the named stream, optionally compressing
+	 * it. A compressed stream is deflated in chunks that are each decompressed on their 
+	 * own, so it can still be read from any position. It reads as empty until it has
+	 * been closed, as its chunk index is only written then.
+	 */
+	public OutputStream getWriteStream(String streamName, boolean compressed) throws IOException {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		long offset = createStream(streamName);
-		return new MFOutputStream(raFile, offset);
+		MFOutputStream stream;
+		store.beginUpdate();
+		try {
+			synchronized (writeStreams) {
+				long offset = createStream(streamName, compressed);
+				stream = compressed ? new MFCompressedOutputStream(this, streamName, offset) : new MFOutputStream(this, streamName, offset);
+				writeStreams.add(stream);
+			}
+		} finally {
+			store.endUpdate(true);
+		}
+		return stream;
 	}
 	
-	public void deleteStream(String streamName) throws IOException {
-		if (raFile == null) {
+	/**
+	 * opens a stream that adds to the end of the named stream, or creates it if it does
+	 * not exist. Only the stream block is read; the data stays where it is, and writing
+	 * carries on from the last extent listed there. Until the stream is flushed or 
+	 * closed, readers see the stream as it was. Compressed streams can not be appended
+	 * to, and a stream can only have one writer appending to it at a time.
+	 * <p>
+	 * An inline stream is continued in a new stream block, which takes the place of the
+	 * inline entry when the stream is first flushed or closed. If the stream is rewritten
+	 * or deleted before then, that flush or close fails and the appended data is dropped.
+	 * <p>
+	 * The stream is looked up and registered as open for writing under the lock that 
+	 * compaction holds while switching a stream over to its copy, so compaction either
+	 * moves the stream before the append starts, or leaves it alone.
+	 */
+	public OutputStream getAppendStream(String streamName) throws IOException {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		for (DirectoryBlock block : directoryBlocks) {
-			Long offset = block.removeStream(streamName);
-			if (offset != null) {
-				block.write(raFile);
-				
-				FileBlock file = new FileBlock(offset.longValue());
-				file.read(raFile);
-				FreeBlock free = new FreeBlock(offset.longValue());
-				free.write(raFile);
-				freeBlocks.add(free);
+		MFOutputStream stream;
+		store.beginUpdate();
+		try {
+			synchronized (writeStreams) {
+				DirectoryEntry entry = directory.get(streamName);
+				if (entry == null) {
+					stream = new MFOutputStream(this, streamName, createStream(streamName, false));
+				} else if (entry.isInline()) {
+					if (isAppendingInline(streamName)) {
+						throw new IOException("Stream " + streamName + " is already open for writing");
+					}
+					stream = new MFOutputStream(this, streamName, allocator.allocateBlock(), entry);
+				} else {
+					StreamBlock existing = new StreamBlock(entry.getStreamOffset());
+					existing.read(store);
+					if (existing.isCompressed()) {
+						throw new IOException("Can not append to compressed stream " + streamName);
+					}
+					if (isOpenForWriting(existing.offset)) {
+						throw new IOException("Stream " + streamName + " is already open for writing");
+					}
+					stream = new MFOutputStream(this, streamName, existing);
+				}
+				writeStreams.add(stream);
+			}
+		} finally {
+			store.endUpdate(true);
+		}
+		return stream;
+	}
+	
+	/**
+	 * copies a stream under a new name, replacing any stream of that name, without 
+	 * copying its data. The clone gets a stream block of its own listing the same 
+	 * extents, and their blocks are counted as shared until all but one of the streams
+	 * referencing them have been deleted or replaced. Stream data is never changed in
+	 * place, and appending to either stream starts a new block rather than writing 
+	 * into a shared one, so the two streams stay independent. A stream that is still 
+	 * being written is cloned as far as it has been flushed.
+	 * <p>
+	 * If the source is replaced or deleted while it is being looked up, its stream 
+	 * block may already have been reused, so the lookup is retried.
+	 */
+	public void cloneStream(String sourceName, String targetName) throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
+		
+		store.beginUpdate();
+		try {
+			while (true) {
+				long releases = allocator.getReleaseCount();
+				DirectoryEntry entry = getEntry(sourceName);
+				if (entry.isInline()) {
+					freeEntry(directory.put(targetName, entry));
+					return;
+				}
 				
-				long next = file.getHeader().getNextBlock();
-				while (next != 0) {
-					file = new FileBlock(next);
-					file.read(raFile);
-					free = new FreeBlock(next);
-					free.write(raFile);
-					freeBlocks.add(free);
-					next = file.getHeader().getNextBlock();
+				StreamBlock source = new StreamBlock(entry.getStreamOffset());
+				try {
+					source.read(store);
+				} catch (IOException ioe) {
+					if (allocator.getReleaseCount() == releases) {
+						throw ioe;
+					}
+					continue;
 				}
-				break;
+				if (allocator.share(source, releases)) {
+					StreamBlock clone = new StreamBlock(allocator.allocateBlock());
+					clone.setCompressed(source.isCompressed());
+					for (Extent extent : source.getExtents()) {
+						clone.addExtent(extent.getOffset(), extent.getLength());
+					}
+					clone.allocateContinuations(allocator, store.getBlockSize());
+					clone.write(store);
+					freeEntry(directory.put(targetName, DirectoryEntry.forStream(clone.offset)));
+					return;
+				}
+			}
+		} finally {
+			store.endUpdate(true);
+		}
+	}
+	
+	/**
+	 * clones every stream, see cloneStream, under its name with the given prefix. 
+	 * Only stream blocks are written, so even a large container is snapshotted 
+	 * quickly. Streams are cloned one after another, so one that is changed meanwhile
+	 * may be captured either before or after the change.
+	 * 
+	 * @return the number of streams cloned
+	 */
+	public int snapshot(String prefix) throws IOException {
+		int cloned = 0;
+		for (String streamName : new ArrayList<String>(getStreamNames())) {
+			try {
+				cloneStream(streamName, prefix + streamName);
+				cloned++;
+			} catch (FileNotFoundException fnfe) {
+				// deleted since the names were listed
+			}
+		}
+		return cloned;
+	}
+	
+	/**
+	 * writes the contents of a stream to a channel, such as a socket. Each extent is 
+	 * handed to FileChannel.transferTo, so the data goes from the file to the channel 
+	 * without being copied into the heap where the platform supports it. Inline streams
+	 * are written from their directory entry, and compressed streams, which have to be
+	 * inflated, through a buffer. The channel must be in blocking mode.
+	 * 
+	 * @return the number of bytes written to the channel
+	 */
+	public long transferTo(String streamName, WritableByteChannel target) throws IOException {
+		DirectoryEntry entry = getEntry(streamName);
+		if (entry.isInline()) {
+			return writeFully(ByteBuffer.wrap(entry.getData()), target);
+		}
+		
+		StreamBlock stream = new StreamBlock(entry.getStreamOffset());
+		stream.read(store);
+		if (stream.isCompressed()) {
+			SeekableInputStream sis = new MFCompressedInputStream(store, stream);
+			try {
+				byte[] buffer = new byte[MFCompressedOutputStream.CHUNKSIZE];
+				long total = 0;
+				int len;
+				while ((len = sis.read(buffer)) >= 0) {
+					total += writeFully(ByteBuffer.wrap(buffer, 0, len), target);
+				}
+				return total;
+			} finally {
+				sis.close();
+			}
+		}
+		
+		for (Extent extent : stream.getExtents()) {
+			store.transferData(extent.getOffset(), extent.getLength(), target);
+		}
+		return stream.getLength();
+	}
+	
+	/**
+	 * reads a whole stream without blocking the caller. The stream's extents are read 
+	 * through an asynchronous channel, in pieces of up to ASYNCREADSIZE bytes that are 
+	 * all in flight at once. A compressed stream is decompressed once it has been read.
+	 * 
+	 * @return a future completed with the stream's data
+	 */
+	public CompletableFuture<byte[]> readStreamAsync(String streamName) throws IOException {
+		DirectoryEntry entry = getEntry(streamName);
+		if (entry.isInline()) {
+			return CompletableFuture.completedFuture(entry.getData().clone());
+		}
+		
+		StreamBlock stream = new StreamBlock(entry.getStreamOffset());
+		stream.read(store);
+		if (stream.getLength() > Integer.MAX_VALUE) {
+			throw new IOException("Stream too large to read at once: " + streamName);
+		}
+		
+		final byte[] data = new byte[(int) stream.getLength()];
+		CompletableFuture<Void> reads = readExtents(stream, 0, ByteBuffer.wrap(data));
+		if (!stream.isCompressed()) {
+			return reads.thenApply(v -> data);
+		}
+		return reads.thenApply(v -> {
+			try {
+				return decompress(data);
+			} catch (IOException ioe) {
+				throw new CompletionException(ioe);
+			}
+		});
+	}
+	
+	/**
+	 * reads part of a stream without blocking the caller, into the remaining space of
+	 * the buffer, or up to the end of the stream. The buffer's position is advanced 
+	 * past the data read, when the future completes. Parts of compressed streams are 
+	 * read and decompressed on the common fork join pool.
+	 * 
+	 * @param position the offset within the stream to start reading at
+	 * @return a future completed with the number of bytes read, or -1 if the position 
+	 * is at or past the end of the stream
+	 */
+	public CompletableFuture<Integer> readAsync(String streamName, final long position, final ByteBuffer dst) throws IOException {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative stream position: " + position);
+		}
+		
+		DirectoryEntry entry = getEntry(streamName);
+		if (entry.isInline()) {
+			byte[] data = entry.getData();
+			if (position >= data.length) {
+				return CompletableFuture.completedFuture(Integer.valueOf(-1));
 			}
+			int len = (int) Math.min(dst.remaining(), data.length - position);
+			dst.put(data, (int) position, len);
+			return CompletableFuture.completedFuture(Integer.valueOf(len));
+		}
+		
+		final StreamBlock stream = new StreamBlock(entry.getStreamOffset());
+		stream.read(store);
+		if (stream.isCompressed()) {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return Integer.valueOf(readCompressed(stream, position, dst));
+				} catch (IOException ioe) {
+					throw new CompletionException(ioe);
+				}
+			});
+		}
+		
+		if (position >= stream.getLength()) {
+			return CompletableFuture.completedFuture(Integer.valueOf(-1));
 		}
+		final int len = (int) Math.min(dst.remaining(), stream.getLength() - position);
+		ByteBuffer target = dst.duplicate();
+		target.limit(target.position() + len);
+		return readExtents(stream, position, target).thenApply(v -> {
+			dst.position(dst.position() + len);
+			return Integer.valueOf(len);
+		});
 	}
 	
-	private long createStream(String streamName) throws IOException {
-		if (raFile == null) {
+	/**
+	 * creates, or replaces, a stream holding the remaining bytes of the buffer, without 
+	 * blocking the caller on writing them. The data is written through an asynchronous 
+	 * channel into one run of blocks after the stream block, and the directory switched 
+	 * to the new stream once it is all written; until then readers see the old stream, 
+	 * if there was one. Small streams are kept inline, and complete at once. The buffer 
+	 * must not be changed until the future completes. Closing the MultiFile waits for 
+	 * writes still in flight, so that none is left holding blocks it never published.
+	 * Cancelling the returned future does not stop the write.
+	 * 
+	 * @return a future completed once the stream is in the directory
+	 */
+	public CompletableFuture<Void> writeStreamAsync(final String streamName, ByteBuffer data) throws IOException {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		deleteStream(streamName);
+		final int blockSize = store.getBlockSize();
+		final int length = data.remaining();
+		if (length <= DirectoryEntry.getInlineLimit(blockSize)) {
+			byte[] inlineData = new byte[length];
+			data.duplicate().get(inlineData);
+			DirectoryEntry entry = DirectoryEntry.forData(inlineData);
+			if (DirectoryBucket.fits(streamName, entry, blockSize)) {
+				store.beginUpdate();
+				try {
+					freeEntry(directory.put(streamName, entry));
+				} finally {
+					store.endUpdate(true);
+				}
+				data.position(data.limit());
+				return CompletableFuture.completedFuture(null);
+			}
+		}
 		
-		FreeBlock free = (freeBlocks.isEmpty()) ? null : freeBlocks.remove(freeBlocks.size() - 1);
-		long offset;
-		if (free != null) {
-			offset = free.getOffset();
-		} else {
-			offset = raFile.length();
+		final Extent target;
+		store.beginUpdate();
+		try {
+			target = allocator.allocateContiguous(1 + ((length + blockSize - 1) / blockSize));
+		} finally {
+			store.endUpdate(false);
 		}
+		final long dataPos = target.getOffset() + blockSize;
+		store.prepareData(dataPos, length);
 		
-		for (DirectoryBlock block : directoryBlocks) {
-			if (block.addStream(streamName, offset)) {
-				block.write(raFile);
-				return offset;
+		final Set<CompletableFuture<Void>> writes = asyncWrites;
+		final CompletableFuture<Void> written = asyncChannel.write(dataPos, data).handle((v, t) -> {
+			try {
+				if (t != null) {
+					freeAsyncTarget(target);
+					throw t;
+				}
+				
+				StreamBlock stream = new StreamBlock(target.getOffset());
+				if (length > 0) {
+					stream.addExtent(dataPos, length);
+				}
+				publishStream(streamName, stream);
+				return null;
+			} catch (Throwable e) {
+				throw (e instanceof CompletionException) ? (CompletionException) e : new CompletionException(e);
 			}
+		});
+		writes.add(written);
+		written.whenComplete((v, t) -> writes.remove(written));
+		return written.thenApply(v -> v);
+	}
+	
+	/**
+	 * starts a batch of stream writes and deletes, that are laid out together and 
+	 * applied to the directory at once when the batch is committed. Batches still 
+	 * open when the MultiFile is closed are aborted.
+	 */
+	public MultiFileBatch beginBatch() throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
 		}
 		
-		DirectoryBlock newBlock = new DirectoryBlock(offset);
-		newBlock.addStream(streamName, offset);
-		newBlock.write(raFile);
-		DirectoryBlock lastBlock = directoryBlocks.get(directoryBlocks.size() - 1);
-		lastBlock.setNextOffset(offset);
-		lastBlock.write(raFile);
-		directoryBlocks.add(newBlock);
+		MultiFileBatch batch = new MultiFileBatch(this);
+		batches.add(batch);
+		return batch;
+	}
+	
+	public void deleteStream(String streamName) throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
+		
+		store.beginUpdate();
+		try {
+			freeEntry(directory.remove(streamName));
+		} finally {
+			store.endUpdate(true);
+		}
+	}
+	
+	/**
+	 * writes an empty stream block, and only then points the directory at it, so 
+	 * that the stream can not be looked up before its block is a stream block. The
+	 * block of a compressed stream is marked compressed from the start, so it can 
+	 * never be taken for a plain stream.
+	 * 
+	 * @return the offset of the stream block
+	 */
+	private long createStream(String streamName, boolean compressed) throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
 		
+		long offset = allocator.allocateBlock();
+		StreamBlock stream = new StreamBlock(offset);
+		stream.setCompressed(compressed);
+		stream.write(store);
+		freeEntry(directory.put(streamName, DirectoryEntry.forStream(offset)));
 		return offset;
 	}
 	
+	/**
+	 * queues the blocks of a stream that has been replaced or deleted, if it had any, 
+	 * to be freed once the space is needed
+	 */
+	void freeEntry(DirectoryEntry entry) throws IOException {
+		if ((entry != null) && !entry.isInline()) {
+			allocator.freeStreamLater(entry.getStreamOffset());
+		}
+	}
+	
+	/**
+	 * compacts the container completely, see compact(int)
+	 */
+	public void compact() throws IOException {
+		while (compact(Integer.MAX_VALUE) > 0) {
+		}
+	}
+	
+	/**
+	 * moves up to the given number of streams, each into one contiguous run of blocks,
+	 * its stream block followed by its data, as low in the container as there is room 
+	 * for. Streams are visited from the end of the file backwards, so the free space 
+	 * left behind collects at the end, where it is trimmed off. A stream that is 
+	 * already contiguous is only moved if there is room for it further down. Streams 
+	 * open for writing are skipped, as are streams sharing blocks with a clone, which 
+	 * moving would duplicate.
+	 * <p>
+	 * Each stream is copied first, and the directory switched over to the copy 
+	 * afterwards, so compaction can be run a little at a time while the container is 
+	 * in use, and streams opened at any point read consistently. Input streams opened 
+	 * before a stream is moved, though, should not be read from once it has been.
+	 * 
+	 * @return the number of streams moved
+	 */
+	public int compact(int maxStreams) throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
+		
+		store.beginUpdate();
+		try {
+			allocator.reclaim();
+		} finally {
+			store.endUpdate(true);
+		}
+		
+		final int blockSize = store.getBlockSize();
+		final Map<String, StreamBlock> streams = new HashMap<String, StreamBlock>();
+		for (String streamName : directory.getStreamNames()) {
+			StreamBlock stream = readIdleStream(streamName);
+			if ((stream != null) && !allocator.isShared(stream)) {
+				streams.put(streamName, stream);
+			}
+		}
+		
+		List<String> streamNames = new ArrayList<String>(streams.keySet());
+		Collections.sort(streamNames, new Comparator<String>() {
+			@Override
+			public int compare(String name1, String name2) {
+				long end1 = streams.get(name1).getBlockEnd(blockSize);
+				long end2 = streams.get(name2).getBlockEnd(blockSize);
+				return (end1 > end2) ? -1 : ((end1 < end2) ? 1 : 0);
+			}
+		});
+		
+		int moved = 0;
+		for (String streamName : streamNames) {
+			if (moved >= maxStreams) {
+				break;
+			}
+			
+			StreamBlock stream = streams.get(streamName);
+			int blocks = 1 + (int) ((stream.getLength() + blockSize - 1) / blockSize);
+			Extent target;
+			store.beginUpdate();
+			try {
+				target = allocator.allocateBelow(blocks, stream.getFirstBlock(blockSize));
+				if ((target == null) && !stream.isContiguous(blockSize)) {
+					target = allocator.allocateContiguous(blocks);
+				}
+			} finally {
+				store.endUpdate(false);
+			}
+			
+			if (target != null) {
+				moveStream(streamName, stream, target);
+				moved++;
+			}
+		}
+		
+		if (moved > 0) {
+			store.beginUpdate();
+			try {
+				allocator.rewriteFreeList();
+			} finally {
+				store.endUpdate(true);
+			}
+		}
+		
+		return moved;
+	}
+	
+	/**
+	 * copies a stream into the given run of blocks, and switches the directory over to
+	 * the copy, unless the stream was replaced, appended to or opened for writing in 
+	 * the meantime. Appends keep the stream block, so its extents are compared too.
+	 */
+	private void moveStream(String streamName, StreamBlock stream, Extent target) throws IOException {
+		int blockSize = store.getBlockSize();
+		StreamBlock copy = new StreamBlock(target.getOffset());
+		copy.setCompressed(stream.isCompressed());
+		long pos = target.getOffset() + blockSize;
+		byte[] buffer = new byte[(int) Math.min(COPYSIZE, Math.max(1, stream.getLength()))];
+		for (Extent extent : stream.getExtents()) {
+			long copied = 0;
+			while (copied < extent.getLength()) {
+				int len = (int) Math.min(buffer.length, extent.getLength() - copied);
+				store.readData(extent.getOffset() + copied, buffer, 0, len);
+				store.writeData(pos, buffer, 0, len);
+				copy.addExtent(pos, len);
+				pos += len;
+				copied += len;
+			}
+		}
+		
+		store.beginUpdate();
+		try {
+			copy.write(store);
+			boolean switched;
+			synchronized (writeStreams) {
+				switched = !isOpenForWriting(stream.offset) && isUnchanged(streamName, stream) && directory.replace(streamName, stream.offset, DirectoryEntry.forStream(copy.offset));
+			}
+			if (switched) {
+				stream.free(allocator, blockSize);
+			} else {
+				copy.free(allocator, blockSize);
+			}
+		} finally {
+			store.endUpdate(true);
+		}
+	}
+	
+	/**
+	 * reads the stream block of a stream that is not open for writing, under the lock
+	 * that streams are opened under, so no writer can be changing the block while it 
+	 * is read
+	 * 
+	 * @return the stream block, or null if the stream is inline, open for writing, 
+	 * or was freed while it was being looked up
+	 */
+	private StreamBlock readIdleStream(String streamName) throws IOException {
+		synchronized (writeStreams) {
+			long releases = allocator.getReleaseCount();
+			DirectoryEntry entry = directory.get(streamName);
+			if ((entry == null) || entry.isInline() || isOpenForWriting(entry.getStreamOffset())) {
+				return null;
+			}
+			
+			StreamBlock stream = new StreamBlock(entry.getStreamOffset());
+			try {
+				stream.read(store);
+			} catch (IOException ioe) {
+				if (allocator.getReleaseCount() == releases) {
+					throw ioe;
+				}
+				return null;
+			}
+			return (allocator.getReleaseCount() == releases) ? stream : null;
+		}
+	}
+	
+	/**
+	 * @return whether a write or append stream is open on the given stream block; 
+	 * callers hold the writeStreams lock, under which streams are opened
+	 */
+	private boolean isOpenForWriting(long streamOffset) {
+		for (MFOutputStream open : writeStreams) {
+			if (open.getStreamBlockOffset() == streamOffset) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return whether an append stream is open on the named inline stream, and has not
+	 * yet taken its place in the directory; callers hold the writeStreams lock
+	 */
+	private boolean isAppendingInline(String streamName) {
+		for (MFOutputStream open : writeStreams) {
+			if (open.continuesInline(streamName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return whether the directory still points at a stream block that lists the same
+	 * extents as when it was read
+	 */
+	private boolean isUnchanged(String streamName, StreamBlock stream) throws IOException {
+		DirectoryEntry entry = directory.get(streamName);
+		if ((entry == null) || entry.isInline() || (entry.getStreamOffset() != stream.offset)) {
+			return false;
+		}
+		
+		StreamBlock current = new StreamBlock(stream.offset);
+		current.read(store);
+		return current.getExtents().equals(stream.getExtents());
+	}
+	
+	private void registerMetrics(File file) throws IOException {
+		try {
+			ObjectName name = new ObjectName("com.mebigfatguy.multifile:type=MultiFile,path=" + ObjectName.quote(file.getAbsolutePath()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			metricsName = name;
+		} catch (JMException jme) {
+			throw new IOException("Failed to register metrics for " + file + ": " + jme.getMessage());
+		}
+	}
+	
+	private void unregisterMetrics() {
+		if (metricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+			} catch (JMException jme) {
+			}
+			metricsName = null;
+		}
+	}
+	
+	private static int writeFully(ByteBuffer data, WritableByteChannel target) throws IOException {
+		int len = data.remaining();
+		while (data.hasRemaining()) {
+			target.write(data);
+		}
+		return len;
+	}
+	
+	private DirectoryEntry getEntry(String streamName) throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
+		
+		DirectoryEntry entry = directory.get(streamName);
+		if (entry == null) {
+			throw new FileNotFoundException("Failed to find stream " + streamName);
+		}
+		return entry;
+	}
+	
+	/**
+	 * issues asynchronous reads for the part of a stream that starts at the given 
+	 * position and fills the remaining space of the buffer
+	 */
+	private CompletableFuture<Void> readExtents(StreamBlock stream, long position, ByteBuffer dst) {
+		List<CompletableFuture<Void>> reads = new ArrayList<CompletableFuture<Void>>();
+		long end = position + dst.remaining();
+		int dstBase = dst.position();
+		long extentStart = 0;
+		for (Extent extent : stream.getExtents()) {
+			long extentEnd = extentStart + extent.getLength();
+			long from = Math.max(position, extentStart);
+			long to = Math.min(end, extentEnd);
+			while (from < to) {
+				int len = (int) Math.min(ASYNCREADSIZE, to - from);
+				ByteBuffer piece = dst.duplicate();
+				piece.position(dstBase + (int) (from - position));
+				piece.limit(piece.position() + len);
+				reads.add(asyncChannel.read(extent.getOffset() + (from - extentStart), piece));
+				from += len;
+			}
+			extentStart = extentEnd;
+		}
+		return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[reads.size()]));
+	}
+	
+	private static byte[] decompress(byte[] raw) throws IOException {
+		SeekableInputStream sis = new MFCompressedInputStream(new MFInlineInputStream(raw));
+		try {
+			byte[] data = new byte[(int) sis.size()];
+			new DataInputStream(sis).readFully(data);
+			return data;
+		} finally {
+			sis.close();
+		}
+	}
+	
+	private int readCompressed(StreamBlock stream, long position, ByteBuffer dst) throws IOException {
+		SeekableInputStream sis = new MFCompressedInputStream(store, stream);
+		try {
+			if (position >= sis.size()) {
+				return -1;
+			}
+			int len = (int) Math.min(dst.remaining(), sis.size() - position);
+			byte[] data = new byte[len];
+			sis.position(position);
+			new DataInputStream(sis).readFully(data);
+			dst.put(data);
+			return len;
+		} finally {
+			sis.close();
+		}
+	}
+	
+	/**
+	 * writes the stream block of a stream written asynchronously, and puts it in the 
+	 * directory in place of any earlier stream of the same name
+	 */
+	private void publishStream(String streamName, StreamBlock stream) throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
+		
+		store.beginUpdate();
+		try {
+			stream.allocateContinuations(allocator, store.getBlockSize());
+			stream.write(store);
+			freeEntry(directory.put(streamName, DirectoryEntry.forStream(stream.offset)));
+		} finally {
+			store.endUpdate(true);
+		}
+	}
+	
+	private void freeAsyncTarget(Extent target) throws IOException {
+		if (store != null) {
+			store.beginUpdate();
+			try {
+				allocator.free(target.getOffset(), target.getLength());
+			} finally {
+				store.endUpdate(false);
+			}
+		}
+	}
+	
+	void writeStreamClosed(MFOutputStream stream) {
+		writeStreams.remove(stream);
+	}
+	
+	void batchFinished(MultiFileBatch batch) {
+		batches.remove(batch);
+	}
+	
 	protected void finalize() throws Throwable {
 		try {
 			close();
@@ -170,50 +989,192 @@ public class MultiFile {
 	}
 	
 	final void readDirectory() throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		DirectoryBlock block = new DirectoryBlock(0);
-		block.read(raFile);
-		directoryBlocks.add(block);
-		
-		long nextOffset = block.getNextOffset();
-		while (nextOffset != 0) {
-			block = new DirectoryBlock(nextOffset);
-			block.read(raFile);
-			directoryBlocks.add(block);
-			nextOffset = block.getNextOffset();
-		}
+		directory = new DirectoryIndex(store, allocator, superBlock.getDirectoryOffset(), directoryCacheSize);
+		directory.read(store);
 	}
 	
-	final void readFreeBlocks() throws IOException {
-		if (raFile == null) {
+	/**
+	 * rebuilds the free list of a container that was not closed properly, or that 
+	 * predates free lists. Every block reachable from the directory, that is the index,
+	 * its table and buckets, stream blocks and the extents of each stream, is marked, 
+	 * and all unmarked runs of blocks, including any previous free list, become free space.
+	 * The references to each data block are counted along the way, to rebuild the table
+	 * of shared blocks.
+	 */
+	final void rebuildFreeList() throws IOException {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		long length = raFile.length();
+		int blockSize = store.getBlockSize();
+		int numBlocks = (int) (store.length() / blockSize);
+		BitSet used = new BitSet(numBlocks);
+		used.set(0);
+		SharedBlocks shared = new SharedBlocks();
 		
-		long offset = BLOCKSIZE;
+		directory.markBlocks(used, blockSize);
+		for (Long bucketOffset : directory.getBucketOffsets()) {
+			DirectoryBucket bucket = directory.readBucket(bucketOffset.longValue());
+			bucket.markBlocks(used, blockSize);
+			for (String streamName : bucket.getStreamNames()) {
+				DirectoryEntry entry = bucket.getEntry(streamName);
+				if (entry.isInline()) {
+					continue;
+				}
+				StreamBlock stream = new StreamBlock(entry.getStreamOffset());
+				stream.read(store);
+				used.set((int) (stream.offset / blockSize));
+				for (Long continuation : stream.getContinuations()) {
+					used.set((int) (continuation.longValue() / blockSize));
+				}
+				for (Extent extent : stream.getExtents()) {
+					long firstBlock = extent.getFirstBlock(blockSize);
+					long blockEnd = extent.getBlockEnd(blockSize);
+					used.set((int) (firstBlock / blockSize), (int) (blockEnd / blockSize));
+					shared.addReference(firstBlock, blockEnd - firstBlock);
+				}
+			}
+		}
 		
-		BlockHeader header = new BlockHeader();
-		while (offset < length) {
-			raFile.seek(offset);
-			header.read(raFile);
-			if (header.getBlockType() == BlockType.FREE) {
-				freeBlocks.add(new FreeBlock(offset));
+		allocator.clear();
+		shared.removeSingleReferences();
+		allocator.setSharedBlocks(shared);
+		int start = used.nextClearBit(0);
+		while (start < numBlocks) {
+			int end = used.nextSetBit(start);
+			if ((end < 0) || (end > numBlocks)) {
+				end = numBlocks;
 			}
-			offset += BLOCKSIZE;
+			allocator.free(((long) start) * blockSize, ((long) (end - start)) * blockSize);
+			start = used.nextClearBit(end);
 		}
+		
+		allocator.writeFreeList();
 	}
 	
 	final void writeEmptyDirectory() throws IOException {
-		if (raFile == null) {
+		if (store == null) {
 			throw new IOException("MultiFile closed");
 		}
 		
-		DirectoryBlock block = new DirectoryBlock(0);
-		block.write(raFile);
-		directoryBlocks.add(block);
+		directory = new DirectoryIndex(store, allocator, allocator.allocateBlock(), directoryCacheSize);
+		directory.create();
+		superBlock.setDirectoryOffset(directory.offset);
+	}
+	
+	final void readSuperBlock() throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
+		
+		BlockHeader header = new BlockHeader();
+		header.read(store, 0);
+		if (header.getBlockType() == BlockType.DIRECTORY) {
+			superBlock = new SuperBlock(SuperBlock.LEGACY_VERSION, MultiFileOptions.DEFAULT_BLOCKSIZE, 0);
+		} else {
+			superBlock = new SuperBlock(0, 0, 0);
+			superBlock.read(store);
+		}
+		store.setBlockSize(superBlock.getBlockSize());
+	}
+	
+	final void writeSuperBlock(int blockSize) throws IOException {
+		if (store == null) {
+			throw new IOException("MultiFile closed");
+		}
+		
+		store.setBlockSize(blockSize);
+		superBlock = new SuperBlock(SuperBlock.VERSION, blockSize, 0);
+		superBlock.write(store);
+	}
+	
+	/**
+	 * converts a container whose streams are chains of blocks, each starting with a 
+	 * header that links to the next, into one where each stream is described by a 
+	 * stream block. Containers written before superblocks existed, which start with 
+	 * their first directory block, are converted the same way. The payload of each 
+	 * chained block becomes an extent; the data itself is not moved. The new stream
+	 * blocks and directory index are written at the end of the file, and only then does the 
+	 * superblock switch over to them, so an interrupted upgrade leaves the original 
+	 * container intact.
+	 */
+	final void upgradeChainedContainer() throws IOException {
+		int blockSize = superBlock.getBlockSize();
+		
+		Map<String, Long> chains = new LinkedHashMap<String, Long>();
+		long nextOffset = superBlock.getDirectoryOffset();
+		do {
+			DirectoryBlock block = new DirectoryBlock(nextOffset);
+			block.read(store);
+			for (String streamName : block.getStreamNames()) {
+				chains.put(streamName, block.getStreamOffset(streamName));
+			}
+			nextOffset = block.getNextOffset();
+		} while (nextOffset != 0);
+		
+		directory = new DirectoryIndex(store, allocator, allocator.allocateBlock(), directoryCacheSize);
+		directory.create();
+		
+		for (Map.Entry<String, Long> entry : chains.entrySet()) {
+			StreamBlock stream = new StreamBlock(allocator.allocateBlock());
+			long chainOffset = entry.getValue().longValue();
+			while (chainOffset != 0) {
+				FileBlock file = new FileBlock(chainOffset);
+				file.read(store);
+				if (file.getSize() > 0) {
+					stream.addExtent(chainOffset + BlockHeader.BLOCKHEADERSIZE, file.getSize());
+				}
+				chainOffset = file.getHeader().getNextBlock();
+			}
+			stream.allocateContinuations(allocator, blockSize);
+			stream.write(store);
+			directory.put(entry.getKey(), DirectoryEntry.forStream(stream.offset));
+		}
+		
+		superBlock = new SuperBlock(SuperBlock.VERSION, blockSize, directory.offset);
+		superBlock.write(store);
+	}
+	
+	/**
+	 * converts a container whose directory is a linked list of directory blocks into 
+	 * one with a hash index. The index is built in new blocks, and the superblock 
+	 * switches over to it before the old directory blocks are released, so an 
+	 * interrupted upgrade leaves the original directory intact.
+	 */
+	final void upgradeLinkedDirectory() throws IOException {
+		int blockSize = superBlock.getBlockSize();
+		boolean freeListValid = superBlock.isClean();
+		if (freeListValid) {
+			superBlock.setClean(false);
+			superBlock.write(store);
+		}
+		
+		directory = new DirectoryIndex(store, allocator, allocator.allocateBlock(), directoryCacheSize);
+		directory.create();
+		
+		List<Long> linkedBlocks = new ArrayList<Long>();
+		long nextOffset = superBlock.getDirectoryOffset();
+		do {
+			DirectoryBlock block = new DirectoryBlock(nextOffset);
+			block.read(store);
+			for (String streamName : block.getStreamNames()) {
+				directory.put(streamName, DirectoryEntry.forStream(block.getStreamOffset(streamName).longValue()));
+			}
+			linkedBlocks.add(Long.valueOf(nextOffset));
+			nextOffset = block.getNextOffset();
+		} while (nextOffset != 0);
+		
+		superBlock = new SuperBlock(SuperBlock.VERSION, blockSize, directory.offset);
+		superBlock.write(store);
+		
+		if (freeListValid) {
+			for (Long blockOffset : linkedBlocks) {
+				allocator.freeBlock(blockOffset.longValue());
+			}
+		}
 	}
 }
@@ -0,0 +1,218 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a set of stream writes and deletes that are applied to a MultiFile together. 
+ * Meant for loading many small streams: each stream is held in memory until it is 
+ * closed, and then laid out, its stream block followed by its data, right after the
+ * previous stream in a large run of blocks allocated for the batch, or, if it is tiny,
+ * kept inline in its directory entry. The directory is
+ * only changed on commit, when each bucket affected is written once for the whole
+ * batch; until then none of the batch's changes are visible. With a journal, the 
+ * whole batch is committed as one update.
+ * <p>
+ * A batch is meant to be used by one thread. Since the names of all streams of a batch
+ * are kept until it is committed, very large loads are best split over several batches.
+ */
+public class MultiFileBatch {
+	
+	private static final long BULKSIZE = 8 * 1024 * 1024;
+	
+	private MultiFile multiFile;
+	private BlockStore store;
+	private ExtentAllocator allocator;
+	private Map<String, DirectoryEntry> changes = new LinkedHashMap<String, DirectoryEntry>();
+	private Extent bulk;
+	private long bulkUsed;
+	
+	MultiFileBatch(MultiFile owner) {
+		multiFile = owner;
+		store = owner.store;
+		allocator = owner.allocator;
+		bulk = null;
+		bulkUsed = 0;
+	}
+	
+	/**
+	 * opens a stream that creates, or replaces, the named stream when the batch is 
+	 * committed. The stream must be closed before then.
+	 */
+	public OutputStream getWriteStream(String streamName) throws IOException {
+		checkOpen();
+		return new MFBatchOutputStream(this, streamName);
+	}
+	
+	/**
+	 * deletes the named stream when the batch is committed
+	 */
+	public void deleteStream(String streamName) throws IOException {
+		checkOpen();
+		freeStream(changes.put(streamName, null));
+	}
+	
+	/**
+	 * applies the batch's changes to the directory, and releases the space left over 
+	 * in its runs of blocks
+	 */
+	public void commit() throws IOException {
+		checkOpen();
+		
+		store.beginUpdate();
+		try {
+			releaseBulk();
+			for (DirectoryEntry previous : multiFile.directory.putAll(changes)) {
+				multiFile.freeEntry(previous);
+			}
+		} finally {
+			store.endUpdate(true);
+		}
+		finish();
+	}
+	
+	/**
+	 * discards the batch, releasing all space written to by it
+	 */
+	public void abort() throws IOException {
+		checkOpen();
+		
+		store.beginUpdate();
+		try {
+			releaseBulk();
+			for (DirectoryEntry entry : changes.values()) {
+				freeStream(entry);
+			}
+		} finally {
+			store.endUpdate(false);
+		}
+		finish();
+	}
+	
+	/**
+	 * lays a closed stream out in the batch's blocks
+	 */
+	void writeStream(String streamName, byte[] data, int length) throws IOException {
+		checkOpen();
+		
+		int blockSize = store.getBlockSize();
+		if (length <= DirectoryEntry.getInlineLimit(blockSize)) {
+			DirectoryEntry entry = DirectoryEntry.forData(Arrays.copyOf(data, length));
+			if (DirectoryBucket.fits(streamName, entry, blockSize)) {
+				freeStream(changes.put(streamName, entry));
+				return;
+			}
+		}
+		
+		List<Extent> extents = takeBlocks(1 + ((length + blockSize - 1) / blockSize));
+		Extent first = extents.get(0);
+		StreamBlock stream = new StreamBlock(first.getOffset());
+		extents.set(0, new Extent(first.getOffset() + blockSize, first.getLength() - blockSize));
+		
+		int written = 0;
+		for (Extent extent : extents) {
+			int len = (int) Math.min(extent.getLength(), length - written);
+			if (len > 0) {
+				store.writeData(extent.getOffset(), data, written, len);
+				stream.addExtent(extent.getOffset(), len);
+				written += len;
+			}
+		}
+		
+		store.beginUpdate();
+		try {
+			stream.allocateContinuations(allocator, blockSize);
+			stream.write(store);
+		} finally {
+			store.endUpdate(false);
+		}
+		
+		freeStream(changes.put(streamName, DirectoryEntry.forStream(stream.offset)));
+	}
+	
+	/**
+	 * takes blocks from the current run, allocating further runs as needed
+	 */
+	private List<Extent> takeBlocks(int blocks) throws IOException {
+		int blockSize = store.getBlockSize();
+		List<Extent> extents = new ArrayList<Extent>();
+		while (blocks > 0) {
+			if ((bulk == null) || (bulkUsed == bulk.getLength())) {
+				store.beginUpdate();
+				try {
+					bulk = allocator.allocate((int) Math.max(blocks, BULKSIZE / blockSize));
+				} finally {
+					store.endUpdate(false);
+				}
+				bulkUsed = 0;
+			}
+			
+			int taken = (int) Math.min(blocks, (bulk.getLength() - bulkUsed) / blockSize);
+			extents.add(new Extent(bulk.getOffset() + bulkUsed, ((long) taken) * blockSize));
+			bulkUsed += ((long) taken) * blockSize;
+			blocks -= taken;
+		}
+		return extents;
+	}
+	
+	private void releaseBulk() throws IOException {
+		if (bulk != null) {
+			allocator.free(bulk.getOffset() + bulkUsed, bulk.getLength() - bulkUsed);
+			bulk = null;
+		}
+	}
+	
+	/**
+	 * frees a stream written earlier in this batch, that has been replaced or deleted
+	 */
+	private void freeStream(DirectoryEntry entry) throws IOException {
+		if ((entry != null) && !entry.isInline()) {
+			store.beginUpdate();
+			try {
+				multiFile.freeEntry(entry);
+			} finally {
+				store.endUpdate(false);
+			}
+		}
+	}
+	
+	private void finish() {
+		multiFile.batchFinished(this);
+		multiFile = null;
+		store = null;
+		allocator = null;
+		changes = null;
+	}
+	
+	private void checkOpen() throws IOException {
+		if (multiFile == null) {
+			throw new IOException("Batch already finished");
+		}
+	}
+	
+	public String toString() {
+		return "MultiFileBatch[CHANGES: " + ((changes == null) ? 0 : changes.size()) + " BULK: " + bulk + " USED: " + bulkUsed + "]";
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import javax.management.MXBean;
+
+/**
+ * counters and timers describing the I/O a MultiFile has done since it was opened. 
+ * Counters only move when metrics were enabled in the MultiFileOptions the container 
+ * was opened with; the free space figures are always current. When enabled, the 
+ * metrics are also registered as an MXBean, see MultiFile.getMetricsName.
+ */
+@MXBean
+public interface MultiFileMetrics {
+	
+	/**
+	 * @return whether the counters are being kept
+	 */
+	boolean isEnabled();
+	
+	/**
+	 * @return the number of block headers read
+	 */
+	long getHeaderReads();
+	
+	/**
+	 * @return the number of block headers written
+	 */
+	long getHeaderWrites();
+	
+	/**
+	 * @return the number of bytes of stream data read
+	 */
+	long getBytesRead();
+	
+	/**
+	 * @return the number of bytes of stream data written
+	 */
+	long getBytesWritten();
+	
+	/**
+	 * @return the number of times an input stream was repositioned, by position or 
+	 * skip, including to load a chunk of a compressed stream
+	 */
+	long getSeeks();
+	
+	/**
+	 * @return the number of bytes of stream data read ahead of sequential readers
+	 */
+	long getReadAheadBytes();
+	
+	/**
+	 * @return the number of changes to the logical length of the container
+	 */
+	long getLengthChanges();
+	
+	/**
+	 * @return the number of times the memory mapping was grown to follow the container
+	 */
+	long getMappingGrowths();
+	
+	/**
+	 * @return the number of directory lookups of a single stream
+	 */
+	long getDirectoryLookups();
+	
+	/**
+	 * @return the number of directory bucket blocks read, overflow blocks included
+	 */
+	long getDirectoryBlockReads();
+	
+	/**
+	 * @return the number of directory buckets found in the directory cache
+	 */
+	long getDirectoryCacheHits();
+	
+	/**
+	 * @return the number of directory buckets that had to be read from the container,
+	 * with the directory cache enabled
+	 */
+	long getDirectoryCacheMisses();
+	
+	/**
+	 * @return the number of allocations that could not be met from free space, and 
+	 * grew the container instead
+	 */
+	long getEndOfFileAllocations();
+	
+	/**
+	 * @return the number of forces of the container or its journal to disk
+	 */
+	long getSyncs();
+	
+	/**
+	 * @return the total time spent forcing the container or its journal to disk
+	 */
+	long getSyncNanos();
+	
+	/**
+	 * @return the number of free bytes inside the container
+	 */
+	long getFreeBytes();
+	
+	/**
+	 * @return the number of separate runs of free blocks inside the container
+	 */
+	int getFreeExtents();
+}
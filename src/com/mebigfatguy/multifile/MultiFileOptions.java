@@ -0,0 +1,125 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+/**
+ * settings used when opening or creating a MultiFile. Settings that describe the
+ * layout of the container, such as the block size, are only used when the container
+ * is created; an existing container keeps the values recorded in its superblock.
+ */
+public class MultiFileOptions {
+	
+	public static final int DEFAULT_BLOCKSIZE = 512;
+	public static final int MIN_BLOCKSIZE = 512;
+	public static final int MAX_BLOCKSIZE = 1024 * 1024;
+	public static final int DEFAULT_DIRECTORYCACHESIZE = 4096;
+	public static final int DEFAULT_READAHEAD = 8 * 1024 * 1024;
+	
+	private int blockSize = DEFAULT_BLOCKSIZE;
+	private boolean journaled = false;
+	private boolean metricsEnabled = false;
+	private int directoryCacheSize = DEFAULT_DIRECTORYCACHESIZE;
+	private int readAhead = DEFAULT_READAHEAD;
+	
+	public int getBlockSize() {
+		return blockSize;
+	}
+	
+	/**
+	 * sets the size of the blocks of a new container. Larger blocks favor throughput
+	 * of large streams, smaller blocks favor density of small streams.
+	 * 
+	 * @param size a power of two between MIN_BLOCKSIZE and MAX_BLOCKSIZE
+	 */
+	public void setBlockSize(int size) {
+		if ((size < MIN_BLOCKSIZE) || (size > MAX_BLOCKSIZE) || (Integer.bitCount(size) != 1)) {
+			throw new IllegalArgumentException("Block size must be a power of two between " + MIN_BLOCKSIZE + " and " + MAX_BLOCKSIZE + ": " + size);
+		}
+		blockSize = size;
+	}
+	
+	public boolean isJournaled() {
+		return journaled;
+	}
+	
+	/**
+	 * sets whether changes to the container's metadata go through a write-ahead journal,
+	 * kept in a file beside the container, so that a crash never leaves the directory or 
+	 * a stream's blocks half changed. Creating, deleting, flushing and closing a stream 
+	 * then return only once the change is on disk, with concurrent callers sharing one
+	 * force of the journal. Unlike the block size this applies each time a container is 
+	 * opened; a leftover journal is always replayed.
+	 */
+	public void setJournaled(boolean journal) {
+		journaled = journal;
+	}
+	
+	public int getDirectoryCacheSize() {
+		return directoryCacheSize;
+	}
+	
+	/**
+	 * sets how many directory buckets are kept parsed in memory, least recently used 
+	 * ones making way for others. Each bucket holds the entries of about a block's 
+	 * worth of streams. The directory itself is never loaded as a whole.
+	 * 
+	 * @param buckets the most buckets to cache, or 0 to read buckets from the container
+	 * on every lookup
+	 */
+	public void setDirectoryCacheSize(int buckets) {
+		if (buckets < 0) {
+			throw new IllegalArgumentException("Directory cache size can not be negative: " + buckets);
+		}
+		directoryCacheSize = buckets;
+	}
+	
+	public int getReadAhead() {
+		return readAhead;
+	}
+	
+	/**
+	 * sets how far ahead of a sequential reader stream data is read into memory in the
+	 * background. The distance starts small and grows while a stream is read in order,
+	 * and shrinks again when the reader jumps elsewhere.
+	 * 
+	 * @param bytes the most bytes to read ahead of each input stream, or 0 to only 
+	 * read data when it is asked for
+	 */
+	public void setReadAhead(int bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Read-ahead can not be negative: " + bytes);
+		}
+		readAhead = bytes;
+	}
+	
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+	
+	/**
+	 * sets whether the container keeps the counters of its MultiFileMetrics, and 
+	 * registers them with the platform MBean server while it is open
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		metricsEnabled = enabled;
+	}
+	
+	public String toString() {
+		return "MultiFileOptions[BLOCKSIZE: " + blockSize + " JOURNALED: " + journaled + " METRICS: " + metricsEnabled + " DIRECTORYCACHE: " + directoryCacheSize + " READAHEAD: " + readAhead + "]";
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * command line maintenance of MultiFile containers
+ * <pre>
+ *   java -jar multifile.jar list &lt;container&gt;
+ *   java -jar multifile.jar compact &lt;container&gt;
+ *   java -jar multifile.jar import &lt;container&gt; &lt;directory&gt; [threads]
+ *   java -jar multifile.jar export &lt;container&gt; &lt;directory&gt; [threads]
+ * </pre>
+ */
+public class MultiFileTool {
+	
+	public static void main(String[] args) {
+		if ((args.length < 2) || (args.length > 4)) {
+			usage(System.err);
+			System.exit(1);
+		}
+		
+		try {
+			String command = args[0];
+			File file = new File(args[1]);
+			if (!file.isFile() && !"import".equals(command)) {
+				System.err.println("No such container: " + file);
+				System.exit(1);
+			}
+			
+			if ("list".equals(command) && (args.length == 2)) {
+				list(file, System.out);
+			} else if ("compact".equals(command) && (args.length == 2)) {
+				compact(file, System.out);
+			} else if ("import".equals(command) && (args.length >= 3)) {
+				importTree(file, new File(args[2]), getThreads(args), System.out);
+			} else if ("export".equals(command) && (args.length >= 3)) {
+				exportTree(file, new File(args[2]), getThreads(args), System.out);
+			} else {
+				usage(System.err);
+				System.exit(1);
+			}
+		} catch (IOException ioe) {
+			System.err.println("Failed: " + ioe.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * prints the name and length of each stream in the container
+	 */
+	public static void list(File file, PrintStream out) throws IOException {
+		MultiFile multiFile = new MultiFile(file);
+		try {
+			for (String streamName : multiFile.getStreamNames()) {
+				SeekableInputStream stream = multiFile.getSeekableStream(streamName);
+				try {
+					out.println(stream.size() + "\t" + streamName);
+				} finally {
+					stream.close();
+				}
+			}
+		} finally {
+			multiFile.close();
+		}
+	}
+	
+	/**
+	 * compacts the container, reporting its size before and after
+	 */
+	public static void compact(File file, PrintStream out) throws IOException {
+		long before = file.length();
+		MultiFile multiFile = new MultiFile(file);
+		try {
+			multiFile.compact();
+		} finally {
+			multiFile.close();
+		}
+		out.println(file + ": " + before + " -> " + file.length() + " bytes");
+	}
+	
+	/**
+	 * copies a directory tree into the container, creating the container if need be
+	 */
+	public static void importTree(File file, File dir, int threads, PrintStream out) throws IOException {
+		if (!dir.isDirectory()) {
+			throw new IOException("No such directory: " + dir);
+		}
+		
+		MultiFile multiFile = new MultiFile(file);
+		try {
+			MultiFileTree.importTree(multiFile, dir, threads, out);
+		} finally {
+			multiFile.close();
+		}
+	}
+	
+	/**
+	 * copies all streams of the container out to files below a directory
+	 */
+	public static void exportTree(File file, File dir, int threads, PrintStream out) throws IOException {
+		MultiFile multiFile = new MultiFile(file);
+		try {
+			MultiFileTree.exportTree(multiFile, dir, threads, out);
+		} finally {
+			multiFile.close();
+		}
+	}
+	
+	private static int getThreads(String[] args) {
+		if (args.length < 4) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		
+		try {
+			int threads = Integer.parseInt(args[3]);
+			if (threads > 0) {
+				return threads;
+			}
+		} catch (NumberFormatException nfe) {
+		}
+		usage(System.err);
+		System.exit(1);
+		return 0;
+	}
+	
+	private static void usage(PrintStream out) {
+		out.println("usage: MultiFileTool list <container>");
+		out.println("       MultiFileTool compact <container>");
+		out.println("       MultiFileTool import <container> <directory> [threads]");
+		out.println("       MultiFileTool export <container> <directory> [threads]");
+	}
+}
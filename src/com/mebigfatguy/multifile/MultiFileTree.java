@@ -0,0 +1,289 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * copies whole directory trees into and out of a container. Each file becomes a 
+ * stream named by its path relative to the root of the tree, with '/' separators.
+ * <p>
+ * Importing reads files on a pool of worker threads, while the calling thread lays 
+ * them out in file walk order through batches, so they land contiguously however 
+ * the reads complete. The bytes read ahead are bounded by READAHEAD; files larger 
+ * than that are copied by the calling thread itself. Exporting writes files on the 
+ * pool, each one sent from the container with transferTo.
+ */
+public class MultiFileTree {
+	
+	static final long READAHEAD = 64L * 1024 * 1024;
+	static final long BATCHSIZE = 256L * 1024 * 1024;
+	private static final long REPORTINTERVAL = 1000;
+	
+	private MultiFileTree() {
+	}
+	
+	/**
+	 * adds every file below a directory to the container, replacing streams of the 
+	 * same names
+	 * 
+	 * @param progress where to report progress, or null
+	 * @return the number of bytes imported
+	 */
+	public static long importTree(MultiFile multiFile, File root, int threads, PrintStream progress) throws IOException {
+		List<File> files = new ArrayList<File>();
+		listFiles(root, files);
+		
+		Progress report = new Progress("imported", progress);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		MultiFileBatch batch = multiFile.beginBatch();
+		try {
+			Deque<PendingFile> pending = new ArrayDeque<PendingFile>();
+			long pendingBytes = 0;
+			long batchBytes = 0;
+			
+			for (final File file : files) {
+				long size = file.length();
+				while (!pending.isEmpty() && ((size > READAHEAD) || ((pendingBytes + size) > READAHEAD))) {
+					PendingFile done = pending.removeFirst();
+					writeFile(batch, root, done, report);
+					pendingBytes -= done.size;
+					batchBytes += done.size;
+				}
+				if (batchBytes >= BATCHSIZE) {
+					batch.commit();
+					batch = multiFile.beginBatch();
+					batchBytes = 0;
+				}
+				
+				if (size > READAHEAD) {
+					copyFile(multiFile, root, file, report);
+				} else {
+					Future<byte[]> data = pool.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws IOException {
+							return Files.readAllBytes(file.toPath());
+						}
+					});
+					pending.addLast(new PendingFile(file, size, data));
+					pendingBytes += size;
+				}
+			}
+			
+			while (!pending.isEmpty()) {
+				writeFile(batch, root, pending.removeFirst(), report);
+			}
+			batch.commit();
+			batch = null;
+		} finally {
+			pool.shutdownNow();
+			if (batch != null) {
+				try {
+					batch.abort();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+		
+		report.finish();
+		return report.bytes;
+	}
+	
+	/**
+	 * writes every stream of the container to a file below a directory, creating 
+	 * subdirectories as needed
+	 * 
+	 * @param progress where to report progress, or null
+	 * @return the number of bytes exported
+	 */
+	public static long exportTree(final MultiFile multiFile, final File root, int threads, PrintStream progress) throws IOException {
+		final String rootPath = root.getCanonicalPath() + File.separator;
+		final Progress report = new Progress("exported", progress);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> exports = new ArrayList<Future<?>>();
+			for (final String streamName : multiFile.getStreamNames()) {
+				exports.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						File file = new File(root, streamName.replace('/', File.separatorChar));
+						if (!file.getCanonicalPath().startsWith(rootPath)) {
+							throw new IOException("Stream name leads outside of " + root + ": " + streamName);
+						}
+						file.getParentFile().mkdirs();
+						
+						FileOutputStream fos = new FileOutputStream(file);
+						try {
+							FileChannel channel = fos.getChannel();
+							report.add(1, multiFile.transferTo(streamName, channel));
+						} finally {
+							fos.close();
+						}
+						return null;
+					}
+				}));
+			}
+			
+			for (Future<?> export : exports) {
+				await(export);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		report.finish();
+		return report.bytes;
+	}
+	
+	private static void listFiles(File dir, List<File> files) throws IOException {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			throw new IOException("Failed to list directory " + dir);
+		}
+		
+		for (File child : children) {
+			if (child.isDirectory()) {
+				listFiles(child, files);
+			} else if (child.isFile()) {
+				files.add(child);
+			}
+		}
+	}
+	
+	private static String getStreamName(File root, File file) {
+		String relative = root.toPath().relativize(file.toPath()).toString();
+		return relative.replace(File.separatorChar, '/');
+	}
+	
+	private static void writeFile(MultiFileBatch batch, File root, PendingFile pendingFile, Progress report) throws IOException {
+		byte[] data = await(pendingFile.data);
+		batch.writeStream(getStreamName(root, pendingFile.file), data, data.length);
+		report.add(1, data.length);
+	}
+	
+	private static void copyFile(MultiFile multiFile, File root, File file, Progress report) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			OutputStream os = multiFile.getWriteStream(getStreamName(root, file));
+			try {
+				byte[] buffer = new byte[1024 * 1024];
+				int len;
+				while ((len = is.read(buffer)) >= 0) {
+					os.write(buffer, 0, len);
+					report.add(0, len);
+				}
+				report.add(1, 0);
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+	}
+	
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * a file being read ahead on the pool
+	 */
+	private static class PendingFile {
+		
+		File file;
+		long size;
+		Future<byte[]> data;
+		
+		PendingFile(File sourceFile, long fileSize, Future<byte[]> fileData) {
+			file = sourceFile;
+			size = fileSize;
+			data = fileData;
+		}
+	}
+	
+	/**
+	 * counts files and bytes, printing the totals and throughput now and then
+	 */
+	private static class Progress {
+		
+		private String verb;
+		private PrintStream out;
+		private long start;
+		private long lastReport;
+		int files;
+		long bytes;
+		
+		Progress(String action, PrintStream progress) {
+			verb = action;
+			out = progress;
+			start = System.currentTimeMillis();
+			lastReport = start;
+			files = 0;
+			bytes = 0;
+		}
+		
+		synchronized void add(int fileCount, long len) {
+			files += fileCount;
+			bytes += len;
+			long now = System.currentTimeMillis();
+			if ((now - lastReport) >= REPORTINTERVAL) {
+				lastReport = now;
+				print(now);
+			}
+		}
+		
+		synchronized void finish() {
+			print(System.currentTimeMillis());
+		}
+		
+		private void print(long now) {
+			if (out != null) {
+				double seconds = Math.max(1, now - start) / 1000.0;
+				out.println(String.format("%s %d files, %d bytes in %.1fs, %.1f MB/s", verb, files, bytes, seconds, bytes / seconds / (1024 * 1024)));
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * an input stream over one stream of a MultiFile that can be repositioned anywhere,
+ * forwards or backwards. Moving the position costs a search of the stream's extents,
+ * and reads nothing until the next read.
+ */
+public abstract class SeekableInputStream extends InputStream {
+	
+	/**
+	 * @return the offset within the stream of the next byte to be read
+	 */
+	public abstract long position() throws IOException;
+	
+	/**
+	 * moves to a new offset within the stream. Positions at or past the end of the 
+	 * stream are allowed, reading from them returns -1.
+	 * 
+	 * @param newPosition the offset of the next byte to be read
+	 */
+	public abstract void position(long newPosition) throws IOException;
+	
+	/**
+	 * @return the length of the stream in bytes
+	 */
+	public abstract long size() throws IOException;
+}
@@ -0,0 +1,246 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * the runs of blocks that are referenced by more than one stream, since streams were
+ * cloned, each with its number of extra references. Blocks that are not listed 
+ * belong to a single stream. Runs are split as needed, so references can be added
+ * and removed for any range of blocks.
+ * <p>
+ * The table is written to a chain of SHARED blocks when the container is closed. 
+ * If it is not closed properly, the table is rebuilt, along with free space, by 
+ * counting the references of every stream.
+ */
+class SharedBlocks {
+	
+	private static final int ENTRYSIZE = 8 + 8 + 4;
+	
+	private TreeMap<Long, Run> runs = new TreeMap<Long, Run>();
+	
+	/**
+	 * adds a reference to each block of a range
+	 */
+	public void addReference(long offset, long length) {
+		long end = offset + length;
+		split(offset);
+		split(end);
+		
+		long pos = offset;
+		while (pos < end) {
+			Map.Entry<Long, Run> entry = runs.ceilingEntry(Long.valueOf(pos));
+			if ((entry == null) || (entry.getKey().longValue() >= end)) {
+				runs.put(Long.valueOf(pos), new Run(end, 1));
+				pos = end;
+			} else if (entry.getKey().longValue() > pos) {
+				runs.put(Long.valueOf(pos), new Run(entry.getKey().longValue(), 1));
+				pos = entry.getKey().longValue();
+			} else {
+				entry.getValue().count++;
+				pos = entry.getValue().end;
+			}
+		}
+		merge(offset, end);
+	}
+	
+	/**
+	 * removes a reference from each block of a range
+	 * 
+	 * @return the parts of the range that are no longer referenced at all
+	 */
+	public List<Extent> removeReference(long offset, long length) {
+		long end = offset + length;
+		split(offset);
+		split(end);
+		
+		List<Extent> unreferenced = new ArrayList<Extent>();
+		long pos = offset;
+		while (pos < end) {
+			Map.Entry<Long, Run> entry = runs.ceilingEntry(Long.valueOf(pos));
+			long next = ((entry == null) || (entry.getKey().longValue() >= end)) ? end : entry.getKey().longValue();
+			if (next > pos) {
+				unreferenced.add(new Extent(pos, next - pos));
+				pos = next;
+			} else {
+				Run run = entry.getValue();
+				if (--run.count == 0) {
+					runs.remove(entry.getKey());
+				}
+				pos = run.end;
+			}
+		}
+		merge(offset, end);
+		return unreferenced;
+	}
+	
+	/**
+	 * @return whether any block of a range is referenced by more than one stream
+	 */
+	public boolean isShared(long offset, long length) {
+		Map.Entry<Long, Run> entry = runs.lowerEntry(Long.valueOf(offset + length));
+		return (entry != null) && (entry.getValue().end > offset);
+	}
+	
+	/**
+	 * removes one reference from every run, turning a count of all references to each
+	 * block into a count of its extra references
+	 */
+	public void removeSingleReferences() {
+		Iterator<Run> it = runs.values().iterator();
+		while (it.hasNext()) {
+			if (--it.next().count == 0) {
+				it.remove();
+			}
+		}
+	}
+	
+	public int size() {
+		return runs.size();
+	}
+	
+	/**
+	 * @return the number of blocks the table takes up
+	 */
+	public int getBlocksNeeded(int blockSize) {
+		int entriesPerBlock = getEntriesPerBlock(blockSize);
+		return (runs.size() + entriesPerBlock - 1) / entriesPerBlock;
+	}
+	
+	/**
+	 * writes the table to the given blocks, which are linked into a chain
+	 */
+	public void write(BlockStore store, List<Long> blocks) throws IOException {
+		int blockSize = store.getBlockSize();
+		int entriesPerBlock = getEntriesPerBlock(blockSize);
+		if (blocks.size() != getBlocksNeeded(blockSize)) {
+			throw new IOException("Shared block table blocks not allocated: " + this);
+		}
+		
+		Iterator<Map.Entry<Long, Run>> it = runs.entrySet().iterator();
+		for (int b = 0; b < blocks.size(); b++) {
+			long blockOffset = blocks.get(b).longValue();
+			long pos = blockOffset + BlockHeader.BLOCKHEADERSIZE;
+			int count = 0;
+			while ((count < entriesPerBlock) && it.hasNext()) {
+				Map.Entry<Long, Run> entry = it.next();
+				long runOffset = entry.getKey().longValue();
+				store.writeLong(pos, runOffset);
+				store.writeLong(pos + 8, entry.getValue().end - runOffset);
+				store.writeInt(pos + 16, entry.getValue().count);
+				pos += ENTRYSIZE;
+				count++;
+			}
+			
+			long nextOffset = (b + 1 < blocks.size()) ? blocks.get(b + 1).longValue() : 0;
+			BlockHeader header = new BlockHeader(BlockType.SHARED, count * ENTRYSIZE, nextOffset);
+			header.write(store, blockOffset);
+			store.ensureLength(blockOffset + blockSize);
+		}
+	}
+	
+	/**
+	 * loads the table from the chain of blocks starting at the given one
+	 * 
+	 * @return the blocks of the chain
+	 */
+	public List<Long> read(BlockStore store, long firstOffset) throws IOException {
+		runs.clear();
+		
+		List<Long> blocks = new ArrayList<Long>();
+		BlockHeader header = new BlockHeader();
+		long blockOffset = firstOffset;
+		while (blockOffset != 0) {
+			header.read(store, blockOffset);
+			if (header.getBlockType() != BlockType.SHARED) {
+				throw new IOException("Expected a shared block table at " + blockOffset + ": " + header);
+			}
+			
+			blocks.add(Long.valueOf(blockOffset));
+			long pos = blockOffset + BlockHeader.BLOCKHEADERSIZE;
+			for (int i = 0; i < header.getSize() / ENTRYSIZE; i++) {
+				long runOffset = store.readLong(pos);
+				runs.put(Long.valueOf(runOffset), new Run(runOffset + store.readLong(pos + 8), store.readInt(pos + 16)));
+				pos += ENTRYSIZE;
+			}
+			blockOffset = header.getNextBlock();
+		}
+		return blocks;
+	}
+	
+	/**
+	 * makes sure no run crosses the given offset
+	 */
+	private void split(long offset) {
+		Map.Entry<Long, Run> entry = runs.lowerEntry(Long.valueOf(offset));
+		if ((entry != null) && (entry.getValue().end > offset)) {
+			Run run = entry.getValue();
+			runs.put(Long.valueOf(offset), new Run(run.end, run.count));
+			run.end = offset;
+		}
+	}
+	
+	/**
+	 * joins neighboring runs with the same count, from the run before a range to the
+	 * run after it
+	 */
+	private void merge(long offset, long end) {
+		Map.Entry<Long, Run> entry = runs.lowerEntry(Long.valueOf(offset));
+		if (entry == null) {
+			entry = runs.ceilingEntry(Long.valueOf(offset));
+		}
+		while (entry != null) {
+			Map.Entry<Long, Run> next = runs.higherEntry(entry.getKey());
+			if ((next == null) || (next.getKey().longValue() > end)) {
+				break;
+			}
+			
+			Run run = entry.getValue();
+			if ((run.end == next.getKey().longValue()) && (run.count == next.getValue().count)) {
+				run.end = next.getValue().end;
+				runs.remove(next.getKey());
+			} else {
+				entry = next;
+			}
+		}
+	}
+	
+	private static int getEntriesPerBlock(int blockSize) {
+		return (blockSize - BlockHeader.BLOCKHEADERSIZE) / ENTRYSIZE;
+	}
+	
+	public String toString() {
+		return "SharedBlocks[RUNS: " + runs.size() + "]";
+	}
+	
+	private static class Run {
+		long end;
+		int count;
+		
+		Run(long runEnd, int runCount) {
+			end = runEnd;
+			count = runCount;
+		}
+	}
+}
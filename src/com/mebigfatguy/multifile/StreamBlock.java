@@ -0,0 +1,267 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the metadata of one stream: its length and the extents holding its data, in order.
+ * Stream data itself is stored without any block headers, so an extent can be read or 
+ * written with a single call. When the extent list outgrows the block, it continues 
+ * in further STREAM blocks linked through the header.
+ * <p>
+ * The first block of a compressed stream is typed COMPRESSED rather than STREAM; its
+ * extents then hold the stream's compressed chunks and their index.
+ */
+public class StreamBlock extends AbstractBlock {
+	
+	private static final int EXTENTSIZE = 8 + 8;
+	
+	long offset;
+	private long length;
+	private boolean compressed;
+	private List<Extent> extents = new ArrayList<Extent>();
+	private List<Long> continuations = new ArrayList<Long>();
+	
+	public StreamBlock(long blockOffset) {
+		super(new BlockHeader(BlockType.STREAM, 0, 0));
+		offset = blockOffset;
+		length = 0;
+		compressed = false;
+	}
+	
+	@Override
+	public void write(BlockStore store) throws IOException {
+		int blockSize = store.getBlockSize();
+		if (continuations.size() != getBlocksNeeded(blockSize) - 1) {
+			throw new IOException("Stream block continuations not allocated: " + this);
+		}
+		
+		int extentIndex = 0;
+		long blockOffset = offset;
+		for (int b = 0; b <= continuations.size(); b++) {
+			long pos = blockOffset + BlockHeader.BLOCKHEADERSIZE;
+			int capacity = (b == 0) ? getFirstCapacity(blockSize) : getContinuationCapacity(blockSize);
+			int count = Math.min(capacity, extents.size() - extentIndex);
+			
+			if (b == 0) {
+				store.writeLong(pos, length);
+				pos += 8;
+			}
+			store.writeInt(pos, count);
+			pos += 4;
+			for (int i = 0; i < count; i++) {
+				Extent extent = extents.get(extentIndex++);
+				store.writeLong(pos, extent.getOffset());
+				store.writeLong(pos + 8, extent.getLength());
+				pos += EXTENTSIZE;
+			}
+			
+			long nextOffset = (b < continuations.size()) ? continuations.get(b).longValue() : 0;
+			BlockHeader blockHeader = (b == 0) ? header : new BlockHeader(BlockType.STREAM, 0, 0);
+			blockHeader.setSize((int) (pos - blockOffset - BlockHeader.BLOCKHEADERSIZE));
+			blockHeader.setNextBlock(nextOffset);
+			blockHeader.write(store, blockOffset);
+			store.ensureLength(blockOffset + blockSize);
+			
+			blockOffset = nextOffset;
+		}
+	}
+	
+	@Override
+	public void read(BlockStore store) throws IOException {
+		header = new BlockHeader();
+		header.read(store, offset);
+		if ((header.getBlockType() != BlockType.STREAM) && (header.getBlockType() != BlockType.COMPRESSED)) {
+			throw new IOException("Expected a stream block at " + offset + ": " + header);
+		}
+		compressed = (header.getBlockType() == BlockType.COMPRESSED);
+		
+		extents.clear();
+		continuations.clear();
+		
+		int blockSize = store.getBlockSize();
+		long pos = offset + BlockHeader.BLOCKHEADERSIZE;
+		length = store.readLong(pos);
+		pos += 8;
+		readExtents(store, pos, getFirstCapacity(blockSize));
+		
+		BlockHeader blockHeader = header;
+		while (blockHeader.getNextBlock() != 0) {
+			long nextOffset = blockHeader.getNextBlock();
+			if (((nextOffset % blockSize) != 0) || (nextOffset >= store.length())) {
+				throw new IOException("Corrupt stream block at " + offset + ": continuation at " + nextOffset);
+			}
+			continuations.add(Long.valueOf(nextOffset));
+			blockHeader = new BlockHeader();
+			blockHeader.read(store, nextOffset);
+			if (blockHeader.getBlockType() != BlockType.STREAM) {
+				throw new IOException("Corrupt stream block at " + offset + ": continuation " + blockHeader);
+			}
+			readExtents(store, nextOffset + BlockHeader.BLOCKHEADERSIZE, getContinuationCapacity(blockSize));
+		}
+	}
+	
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * @return whether the stream's data is compressed, see MFCompressedOutputStream
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+	
+	public void setCompressed(boolean isCompressed) {
+		compressed = isCompressed;
+		header = new BlockHeader(isCompressed ? BlockType.COMPRESSED : BlockType.STREAM, header.getSize(), header.getNextBlock());
+	}
+	
+	public List<Extent> getExtents() {
+		return Collections.unmodifiableList(extents);
+	}
+	
+	public List<Long> getContinuations() {
+		return Collections.unmodifiableList(continuations);
+	}
+	
+	/**
+	 * appends a range of the container to the end of the stream, merging it into the
+	 * last extent when the two are contiguous
+	 */
+	public void addExtent(long extentOffset, long extentLength) {
+		if (!extents.isEmpty()) {
+			Extent last = extents.get(extents.size() - 1);
+			if (last.getEnd() == extentOffset) {
+				last.setLength(last.getLength() + extentLength);
+				length += extentLength;
+				return;
+			}
+		}
+		
+		extents.add(new Extent(extentOffset, extentLength));
+		length += extentLength;
+	}
+	
+	/**
+	 * grows or shrinks the chain of continuation blocks to what the extent list needs
+	 */
+	public void allocateContinuations(ExtentAllocator allocator, int blockSize) throws IOException {
+		int needed = getBlocksNeeded(blockSize) - 1;
+		while (continuations.size() < needed) {
+			continuations.add(Long.valueOf(allocator.allocateBlock()));
+		}
+		while (continuations.size() > needed) {
+			allocator.freeBlock(continuations.remove(continuations.size() - 1).longValue());
+		}
+	}
+	
+	/**
+	 * returns all blocks used by this stream, its data and its metadata, to free space.
+	 * Data blocks that are shared with other streams are only released by this one. 
+	 * The stream block itself is released too, so that the allocator's release count 
+	 * tells anyone who looked the stream up that it may be gone.
+	 */
+	public void free(ExtentAllocator allocator, int blockSize) throws IOException {
+		for (Extent extent : extents) {
+			long firstBlock = extent.getFirstBlock(blockSize);
+			allocator.release(firstBlock, extent.getBlockEnd(blockSize) - firstBlock);
+		}
+		for (Long continuation : continuations) {
+			allocator.freeBlock(continuation.longValue());
+		}
+		allocator.release(offset, blockSize);
+	}
+	
+	/**
+	 * @return whether the stream takes up one run of blocks, its stream block followed
+	 * directly by all of its data
+	 */
+	public boolean isContiguous(int blockSize) {
+		if (!continuations.isEmpty() || (extents.size() > 1)) {
+			return false;
+		}
+		return extents.isEmpty() || (extents.get(0).getOffset() == (offset + blockSize));
+	}
+	
+	/**
+	 * @return the offset of the lowest block used by the stream
+	 */
+	public long getFirstBlock(int blockSize) {
+		long firstBlock = offset;
+		for (Extent extent : extents) {
+			firstBlock = Math.min(firstBlock, extent.getFirstBlock(blockSize));
+		}
+		for (Long continuation : continuations) {
+			firstBlock = Math.min(firstBlock, continuation.longValue());
+		}
+		return firstBlock;
+	}
+	
+	/**
+	 * @return the offset just past the highest block used by the stream
+	 */
+	public long getBlockEnd(int blockSize) {
+		long blockEnd = offset + blockSize;
+		for (Extent extent : extents) {
+			blockEnd = Math.max(blockEnd, extent.getBlockEnd(blockSize));
+		}
+		for (Long continuation : continuations) {
+			blockEnd = Math.max(blockEnd, continuation.longValue() + blockSize);
+		}
+		return blockEnd;
+	}
+	
+	private void readExtents(BlockStore store, long pos, int capacity) throws IOException {
+		int count = store.readInt(pos);
+		if ((count < 0) || (count > capacity)) {
+			throw new IOException("Corrupt stream block at " + offset + ": " + count + " extents");
+		}
+		pos += 4;
+		for (int i = 0; i < count; i++) {
+			extents.add(new Extent(store.readLong(pos), store.readLong(pos + 8)));
+			pos += EXTENTSIZE;
+		}
+	}
+	
+	private int getBlocksNeeded(int blockSize) {
+		int remaining = extents.size() - getFirstCapacity(blockSize);
+		if (remaining <= 0) {
+			return 1;
+		}
+		
+		int continuationCapacity = getContinuationCapacity(blockSize);
+		return 1 + (remaining + continuationCapacity - 1) / continuationCapacity;
+	}
+	
+	private static int getFirstCapacity(int blockSize) {
+		return (blockSize - BlockHeader.BLOCKHEADERSIZE - 8 - 4) / EXTENTSIZE;
+	}
+	
+	private static int getContinuationCapacity(int blockSize) {
+		return (blockSize - BlockHeader.BLOCKHEADERSIZE - 4) / EXTENTSIZE;
+	}
+	
+	public String toString() {
+		return "StreamBlock[OFFSET: " + offset + " LENGTH: " + length + " COMPRESSED: " + compressed + " EXTENTS: " + extents.size() + "]";
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * MultiFile - A single file store of multiple streams
+ * Copyright 2011 MeBigFatGuy.com
+ * Copyright 2011 Dave Brosius
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.mebigfatguy.multifile;
+
+import java.io.IOException;
+
+/**
+ * the first block of a container, describing its layout. Containers written 
+ * before the superblock existed start with a directory block instead, and are
+ * upgraded when opened, as are containers of older versions.
+ */
+public class SuperBlock extends AbstractBlock {
+	
+	static final int MAGIC = 0x4D46494C;
+	/** containers without a superblock, whose streams are chains of blocks */
+	static final int LEGACY_VERSION = 0;
+	/** containers whose streams are chains of blocks */
+	static final int CHAINED_VERSION = 1;
+	/** containers whose streams are described by stream blocks */
+	static final int STREAMBLOCK_VERSION = 2;
+	/** containers that keep a persistent list of free extents */
+	static final int FREELIST_VERSION = 3;
+	/** containers whose directory is a hash index */
+	static final int INDEX_VERSION = 4;
+	/** containers that keep small streams inline in their directory entries */
+	static final int INLINE_VERSION = 5;
+	/** containers that may hold compressed streams */
+	static final int COMPRESSED_VERSION = 6;
+	/** containers whose streams may share blocks */
+	static final int VERSION = 7;
+	
+	private static final int PAYLOADSIZE = 4 + 4 + 4 + 8 + 8 + 4 + 8;
+	
+	private int version;
+	private int blockSize;
+	private long directoryOffset;
+	private long freeListOffset;
+	private long sharedListOffset;
+	private boolean clean;
+	
+	public SuperBlock(int formatVersion, int containerBlockSize, long rootDirectoryOffset) {
+		super(new BlockHeader(BlockType.SUPER, PAYLOADSIZE, 0));
+		version = formatVersion;
+		blockSize = containerBlockSize;
+		directoryOffset = rootDirectoryOffset;
+		freeListOffset = 0;
+		sharedListOffset = 0;
+		clean = false;
+	}
+	
+	@Override
+	public void write(BlockStore store) throws IOException {
+		long pos = BlockHeader.BLOCKHEADERSIZE;
+		store.writeInt(pos, MAGIC);
+		store.writeInt(pos + 4, version);
+		store.writeInt(pos + 8, blockSize);
+		store.writeLong(pos + 12, directoryOffset);
+		store.writeLong(pos + 20, freeListOffset);
+		store.writeInt(pos + 28, clean ? 1 : 0);
+		store.writeLong(pos + 32, sharedListOffset);
+		header.write(store, 0);
+		store.ensureLength(blockSize);
+	}
+	
+	@Override
+	public void read(BlockStore store) throws IOException {
+		header = new BlockHeader();
+		header.read(store, 0);
+		if (header.getBlockType() != BlockType.SUPER) {
+			throw new IOException("Container does not start with a superblock: " + header);
+		}
+		
+		long pos = BlockHeader.BLOCKHEADERSIZE;
+		if (store.readInt(pos) != MAGIC) {
+			throw new IOException("Container has an invalid superblock");
+		}
+		version = store.readInt(pos + 4);
+		if ((version < CHAINED_VERSION) || (version > VERSION)) {
+			throw new IOException("Unsupported container version: " + version);
+		}
+		blockSize = store.readInt(pos + 8);
+		directoryOffset = store.readLong(pos + 12);
+		if (version >= FREELIST_VERSION) {
+			freeListOffset = store.readLong(pos + 20);
+			clean = store.readInt(pos + 28) != 0;
+		} else {
+			freeListOffset = 0;
+			clean = false;
+		}
+		sharedListOffset = (version >= VERSION) ? store.readLong(pos + 32) : 0;
+	}
+	
+	public int getVersion() {
+		return version;
+	}
+	
+	public int getBlockSize() {
+		return blockSize;
+	}
+	
+	public long getDirectoryOffset() {
+		return directoryOffset;
+	}
+	
+	public void setDirectoryOffset(long offset) {
+		directoryOffset = offset;
+	}
+	
+	public long getFreeListOffset() {
+		return freeListOffset;
+	}
+	
+	public void setFreeListOffset(long offset) {
+		freeListOffset = offset;
+	}
+	
+	/**
+	 * @return the offset of the table of shared blocks, or 0 if no blocks are shared
+	 */
+	public long getSharedListOffset() {
+		return sharedListOffset;
+	}
+	
+	public void setSharedListOffset(long offset) {
+		sharedListOffset = offset;
+	}
+	
+	/**
+	 * whether the container was closed properly, so that its free list can be trusted
+	 */
+	public boolean isClean() {
+		return clean;
+	}
+	
+	public void setClean(boolean isClean) {
+		clean = isClean;
+	}
+	
+	public String toString() {
+		return "SuperBlock[VERSION: " + version + " BLOCKSIZE: " + blockSize + " DIRECTORY: " + directoryOffset + " FREELIST: " + freeListOffset + " SHARED: " + sharedListOffset + " CLEAN: " + clean + "]";
+	}
+}
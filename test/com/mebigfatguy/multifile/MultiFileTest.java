@@ -1,12 +1,33 @@
 package com.mebigfatguy.multifile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -15,10 +36,14 @@ import org.junit.Test;
 public class MultiFileTest {
 
 	private static final String TEST_FILE_NAME = "__test__.mff";
+	private static final String CRASH_FILE_NAME = "__crash__.mff";
 	@Before
 	public void setUp() {
 		File f = new File(TEST_FILE_NAME);
 		f.delete();
+		new File(TEST_FILE_NAME + ".journal").delete();
+		new File(CRASH_FILE_NAME).delete();
+		new File(CRASH_FILE_NAME + ".journal").delete();
 	}
 	
 	@Test
@@ -28,7 +53,7 @@ public class MultiFileTest {
 		f.close();	
 		
 		File rawFile = new File(TEST_FILE_NAME);
-		Assert.assertEquals(512, rawFile.length());
+		Assert.assertEquals(2048, rawFile.length());
 		
 		f = new MultiFile(TEST_FILE_NAME);
 		Assert.assertEquals(0, f.getStreamNames().size());
@@ -111,4 +136,1162 @@ public class MultiFileTest {
 		Assert.assertEquals(2, f.getStreamNames().size());
 		f.close();
 	}
-}
+	
+	@Test
+	public void testSkipAndMark() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		
+		OutputStream os = f.getWriteStream("stream1");
+		for (int i = 0; i < 2000; i++) {
+			os.write(i);
+		}
+		os.close();
+		
+		InputStream is = f.getReadStream("stream1");
+		Assert.assertEquals(0, is.read());
+		Assert.assertEquals(1200, is.skip(1200));
+		Assert.assertEquals(1201 & 0xFF, is.read());
+		is.mark(0);
+		byte[] data = new byte[700];
+		Assert.assertEquals(700, is.read(data));
+		Assert.assertEquals(1202 & 0xFF, data[0] & 0xFF);
+		Assert.assertEquals(1901 & 0xFF, data[699] & 0xFF);
+		is.reset();
+		Assert.assertEquals(1202 & 0xFF, is.read());
+		Assert.assertEquals(797, is.skip(1000));
+		Assert.assertEquals(-1, is.read());
+		Assert.assertEquals(-1, is.read(data));
+		is.close();
+		f.close();
+	}
+	
+	@Test
+	public void testBlockSize() throws IOException {
+		MultiFileOptions options = new MultiFileOptions();
+		options.setBlockSize(4096);
+		MultiFile f = new MultiFile(TEST_FILE_NAME, options);
+		
+		OutputStream os = f.getWriteStream("stream1");
+		DataOutputStream dos = new DataOutputStream(os);
+		for (int i = 0; i < 1000; i++) {
+			dos.writeInt(i);
+		}
+		dos.close();
+		f.close();
+		
+		File rawFile = new File(TEST_FILE_NAME);
+		Assert.assertEquals(0, rawFile.length() % 4096);
+		Assert.assertEquals(6 * 4096, rawFile.length());
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		DataInputStream dis = new DataInputStream(f.getReadStream("stream1"));
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(i, dis.readInt());
+		}
+		dis.close();
+		f.close();
+	}
+	
+	@Test
+	public void testReuseFreeSpace() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		byte[] data = new byte[100000];
+		
+		OutputStream os = f.getWriteStream("stream1");
+		os.write(data);
+		os.close();
+		os = f.getWriteStream("stream2");
+		os.write(data, 0, 10);
+		os.close();
+		f.close();
+		
+		long length = new File(TEST_FILE_NAME).length();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		f.deleteStream("stream1");
+		os = f.getWriteStream("stream3");
+		for (int i = 0; i < 10; i++) {
+			os.write(data, 0, data.length / 10);
+		}
+		os.close();
+		f.close();
+		
+		// at most one block more, for the free list
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() <= length + 512);
+	}
+	
+	@Test
+	public void testSeek() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		
+		DataOutputStream dos1 = new DataOutputStream(f.getWriteStream("stream1"));
+		DataOutputStream dos2 = new DataOutputStream(f.getWriteStream("stream2"));
+		for (int i = 0; i < 50000; i++) {
+			dos1.writeInt(i);
+			dos2.writeInt(-i);
+			if ((i % 1000) == 0) {
+				dos1.flush();
+				dos2.flush();
+			}
+		}
+		dos1.close();
+		dos2.close();
+		
+		SeekableInputStream sis = f.getSeekableStream("stream1");
+		Assert.assertEquals(200000, sis.size());
+		DataInputStream dis = new DataInputStream(sis);
+		for (int i : new int[] { 49999, 0, 25000, 1, 30001, 12345 }) {
+			sis.position(i * 4L);
+			Assert.assertEquals(i, dis.readInt());
+			Assert.assertEquals(i * 4L + 4, sis.position());
+		}
+		
+		sis.position(300000);
+		Assert.assertEquals(-1, sis.read());
+		dis.close();
+		f.close();
+	}
+	
+	@Test
+	public void testManyStreams() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		for (int i = 0; i < 5000; i++) {
+			OutputStream os = f.getWriteStream("stream" + i);
+			os.write(i & 0xFF);
+			os.close();
+		}
+		for (int i = 0; i < 5000; i += 2) {
+			f.deleteStream("stream" + i);
+		}
+		f.close();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(2500, f.getStreamNames().size());
+		for (int i = 1; i < 5000; i += 2) {
+			InputStream is = f.getReadStream("stream" + i);
+			Assert.assertEquals(i & 0xFF, is.read());
+			is.close();
+		}
+		try {
+			f.getReadStream("stream0");
+			Assert.assertTrue(false);
+		} catch (IOException ioe) {
+			Assert.assertTrue(true);
+		}
+		f.close();
+	}
+	
+	@Test
+	public void testConcurrentReads() throws Exception {
+		final MultiFile f = new MultiFile(TEST_FILE_NAME);
+		for (int s = 0; s < 4; s++) {
+			DataOutputStream dos = new DataOutputStream(f.getWriteStream("stream" + s));
+			for (int i = 0; i < 20000; i++) {
+				dos.writeInt(i + s);
+			}
+			dos.close();
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 16; t++) {
+				final int s = t % 4;
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException {
+						DataInputStream dis = new DataInputStream(f.getReadStream("stream" + s));
+						try {
+							for (int i = 0; i < 20000; i++) {
+								if (dis.readInt() != (i + s)) {
+									return Boolean.FALSE;
+								}
+							}
+							return Boolean.TRUE;
+						} finally {
+							dis.close();
+						}
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				Assert.assertTrue(result.get().booleanValue());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		f.close();
+	}
+	
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		final MultiFile f = new MultiFile(TEST_FILE_NAME);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				final int thread = t;
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						for (int s = 0; s < 50; s++) {
+							DataOutputStream dos = new DataOutputStream(f.getWriteStream("stream" + thread + "_" + s));
+							for (int i = 0; i < 1000 * (s % 5); i++) {
+								dos.writeInt(i + thread);
+							}
+							dos.close();
+							if ((s % 10) == 9) {
+								f.deleteStream("stream" + thread + "_" + (s - 1));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		f.close();
+		
+		MultiFile g = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(8 * 45, g.getStreamNames().size());
+		for (int t = 0; t < 8; t++) {
+			for (int s = 0; s < 50; s += 3) {
+				if ((s % 10) == 8) {
+					continue;
+				}
+				DataInputStream dis = new DataInputStream(g.getReadStream("stream" + t + "_" + s));
+				for (int i = 0; i < 1000 * (s % 5); i++) {
+					Assert.assertEquals(i + t, dis.readInt());
+				}
+				Assert.assertEquals(-1, dis.read());
+				dis.close();
+			}
+		}
+		g.close();
+	}
+	
+	@Test
+	public void testJournal() throws IOException {
+		MultiFileOptions options = new MultiFileOptions();
+		options.setJournaled(true);
+		MultiFile f = new MultiFile(TEST_FILE_NAME, options);
+		Assert.assertTrue(new File(TEST_FILE_NAME + ".journal").exists());
+		
+		for (int s = 0; s < 20; s++) {
+			DataOutputStream dos = new DataOutputStream(f.getWriteStream("stream" + s));
+			for (int i = 0; i < 1000 * s; i++) {
+				dos.writeInt(i);
+			}
+			dos.close();
+		}
+		f.deleteStream("stream0");
+		f.close();
+		Assert.assertFalse(new File(TEST_FILE_NAME + ".journal").exists());
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(19, f.getStreamNames().size());
+		DataInputStream dis = new DataInputStream(f.getReadStream("stream19"));
+		for (int i = 0; i < 19000; i++) {
+			Assert.assertEquals(i, dis.readInt());
+		}
+		dis.close();
+		f.close();
+	}
+	
+	@Test
+	public void testJournalReplay() throws IOException {
+		MultiFileOptions options = new MultiFileOptions();
+		options.setJournaled(true);
+		MultiFile f = new MultiFile(TEST_FILE_NAME, options);
+		writeJournalStreams(f, 20);
+		f.deleteStream("stream0");
+		
+		// a copy taken while the container is open is what a crash would leave behind
+		copyContainer();
+		f.close();
+		Assert.assertTrue(new File(CRASH_FILE_NAME + ".journal").length() > 0);
+		
+		f = new MultiFile(CRASH_FILE_NAME);
+		Assert.assertFalse(new File(CRASH_FILE_NAME + ".journal").exists());
+		Assert.assertEquals(19, f.getStreamNames().size());
+		for (int s = 1; s < 20; s++) {
+			checkJournalStream(f, s);
+		}
+		f.close();
+	}
+	
+	@Test
+	public void testJournalDamagedTail() throws IOException {
+		for (boolean truncate : new boolean[] { true, false }) {
+			setUp();
+			MultiFileOptions options = new MultiFileOptions();
+			options.setJournaled(true);
+			MultiFile f = new MultiFile(TEST_FILE_NAME, options);
+			writeJournalStreams(f, 10);
+			OutputStream os = f.getWriteStream("last");
+			os.write(new byte[5000]);
+			os.close();
+			copyContainer();
+			f.close();
+			
+			// the last record, written when "last" was closed, is cut short or corrupted
+			RandomAccessFile journal = new RandomAccessFile(CRASH_FILE_NAME + ".journal", "rw");
+			try {
+				if (truncate) {
+					journal.setLength(journal.length() - 1);
+				} else {
+					journal.seek(journal.length() - 20);
+					int b = journal.read();
+					journal.seek(journal.length() - 20);
+					journal.write(b ^ 0xFF);
+				}
+			} finally {
+				journal.close();
+			}
+			
+			f = new MultiFile(CRASH_FILE_NAME);
+			Assert.assertFalse(new File(CRASH_FILE_NAME + ".journal").exists());
+			for (int s = 0; s < 10; s++) {
+				checkJournalStream(f, s);
+			}
+			Assert.assertTrue(f.getStreamNames().size() <= 11);
+			os = f.getWriteStream("after");
+			os.write(new byte[5000]);
+			os.close();
+			f.close();
+			
+			f = new MultiFile(CRASH_FILE_NAME);
+			for (int s = 0; s < 10; s++) {
+				checkJournalStream(f, s);
+			}
+			InputStream is = f.getReadStream("after");
+			Assert.assertEquals(5000, is.skip(Long.MAX_VALUE));
+			is.close();
+			f.close();
+		}
+	}
+	
+	private static void writeJournalStreams(MultiFile f, int streams) throws IOException {
+		for (int s = 0; s < streams; s++) {
+			DataOutputStream dos = new DataOutputStream(f.getWriteStream("stream" + s));
+			for (int i = 0; i < 1000 * s; i++) {
+				dos.writeInt(i + s);
+			}
+			dos.close();
+		}
+	}
+	
+	private static void checkJournalStream(MultiFile f, int s) throws IOException {
+		DataInputStream dis = new DataInputStream(f.getReadStream("stream" + s));
+		for (int i = 0; i < 1000 * s; i++) {
+			Assert.assertEquals(i + s, dis.readInt());
+		}
+		Assert.assertEquals(-1, dis.read());
+		dis.close();
+	}
+	
+	private static void copyContainer() throws IOException {
+		Files.copy(new File(TEST_FILE_NAME).toPath(), new File(CRASH_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(new File(TEST_FILE_NAME + ".journal").toPath(), new File(CRASH_FILE_NAME + ".journal").toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	@Test
+	public void testBatch() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		OutputStream os = f.getWriteStream("replaced");
+		os.write(1);
+		os.close();
+		os = f.getWriteStream("deleted");
+		os.write(2);
+		os.close();
+		
+		MultiFileBatch batch = f.beginBatch();
+		for (int i = 0; i < 2000; i++) {
+			DataOutputStream dos = new DataOutputStream(batch.getWriteStream("stream" + i));
+			dos.writeInt(i);
+			dos.writeUTF("document " + i);
+			dos.close();
+		}
+		os = batch.getWriteStream("replaced");
+		os.write(3);
+		os.close();
+		batch.deleteStream("deleted");
+		Assert.assertEquals(2, f.getStreamNames().size());
+		batch.commit();
+		f.close();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(2001, f.getStreamNames().size());
+		for (int i = 0; i < 2000; i += 7) {
+			DataInputStream dis = new DataInputStream(f.getReadStream("stream" + i));
+			Assert.assertEquals(i, dis.readInt());
+			Assert.assertEquals("document " + i, dis.readUTF());
+			dis.close();
+		}
+		InputStream is = f.getReadStream("replaced");
+		Assert.assertEquals(3, is.read());
+		Assert.assertEquals(-1, is.read());
+		is.close();
+		f.close();
+		
+		long committedLength = new File(TEST_FILE_NAME).length();
+		f = new MultiFile(TEST_FILE_NAME);
+		batch = f.beginBatch();
+		os = batch.getWriteStream("uncommitted");
+		os.write(new byte[100000]);
+		os.close();
+		f.close();
+		Assert.assertEquals(committedLength, new File(TEST_FILE_NAME).length());
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(2001, f.getStreamNames().size());
+		f.close();
+	}
+	
+	@Test
+	public void testCompact() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		DataOutputStream[] streams = new DataOutputStream[10];
+		for (int s = 0; s < streams.length; s++) {
+			streams[s] = new DataOutputStream(f.getWriteStream("stream" + s));
+		}
+		for (int i = 0; i < 10000; i++) {
+			for (int s = 0; s < streams.length; s++) {
+				streams[s].writeInt(i + s);
+				if ((i % 200) == 0) {
+					streams[s].flush();
+				}
+			}
+		}
+		for (int s = 0; s < streams.length; s++) {
+			streams[s].close();
+		}
+		for (int s = 0; s < streams.length; s += 2) {
+			f.deleteStream("stream" + s);
+		}
+		f.close();
+		
+		long length = new File(TEST_FILE_NAME).length();
+		f = new MultiFile(TEST_FILE_NAME);
+		f.compact();
+		f.close();
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() < length);
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(5, f.getStreamNames().size());
+		for (int s = 1; s < streams.length; s += 2) {
+			DataInputStream dis = new DataInputStream(f.getReadStream("stream" + s));
+			for (int i = 0; i < 10000; i++) {
+				Assert.assertEquals(i + s, dis.readInt());
+			}
+			Assert.assertEquals(-1, dis.read());
+			dis.close();
+		}
+		f.close();
+	}
+	
+	@Test
+	public void testInlineStreams() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		for (int s = 0; s < 100; s++) {
+			DataOutputStream dos = new DataOutputStream(f.getWriteStream("tiny" + s));
+			dos.writeInt(s);
+			dos.close();
+		}
+		f.close();
+		
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() < 100 * 2048);
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		for (int s = 0; s < 100; s++) {
+			DataInputStream dis = new DataInputStream(f.getReadStream("tiny" + s));
+			Assert.assertEquals(s, dis.readInt());
+			Assert.assertEquals(-1, dis.read());
+			dis.close();
+		}
+		
+		DataOutputStream dos = new DataOutputStream(f.getWriteStream("tiny0"));
+		for (int i = 0; i < 10000; i++) {
+			dos.writeInt(i);
+		}
+		dos.close();
+		f.deleteStream("tiny1");
+		f.close();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(99, f.getStreamNames().size());
+		DataInputStream dis = new DataInputStream(f.getReadStream("tiny0"));
+		for (int i = 0; i < 10000; i++) {
+			Assert.assertEquals(i, dis.readInt());
+		}
+		Assert.assertEquals(-1, dis.read());
+		dis.close();
+		f.close();
+	}
+	
+	@Test
+	public void testAppendDuringCompact() throws Exception {
+		final MultiFile f = new MultiFile(TEST_FILE_NAME);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ByteArrayOutputStream[] expected = new ByteArrayOutputStream[16];
+		try {
+			Future<Integer> compaction = executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws IOException {
+					int moved = 0;
+					while (!done.get()) {
+						moved += f.compact(1);
+					}
+					return Integer.valueOf(moved);
+				}
+			});
+			
+			for (int i = 0; i < 3000; i++) {
+				int s = (i * 7) % expected.length;
+				if (expected[s] == null) {
+					expected[s] = new ByteArrayOutputStream();
+				}
+				byte[] record = new byte[100 + (i % 700)];
+				Arrays.fill(record, (byte) i);
+				OutputStream os = f.getAppendStream("log" + s);
+				os.write(record);
+				os.close();
+				expected[s].write(record);
+			}
+			done.set(true);
+			Assert.assertTrue(compaction.get().intValue() > 0);
+		} finally {
+			done.set(true);
+			executor.shutdown();
+		}
+		f.close();
+		
+		MultiFile g = new MultiFile(TEST_FILE_NAME);
+		for (int s = 0; s < expected.length; s++) {
+			byte[] data = new byte[expected[s].size()];
+			DataInputStream dis = new DataInputStream(g.getReadStream("log" + s));
+			dis.readFully(data);
+			Assert.assertEquals(-1, dis.read());
+			dis.close();
+			Assert.assertTrue(Arrays.equals(expected[s].toByteArray(), data));
+		}
+		g.close();
+	}
+	
+	@Test
+	public void testCompressedStreams() throws Exception {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		DataOutputStream dos = new DataOutputStream(f.getWriteStream("text", true));
+		for (int i = 0; i < 100000; i++) {
+			dos.writeUTF("line " + (i % 100));
+		}
+		dos.close();
+		dos = new DataOutputStream(f.getWriteStream("tiny", true));
+		dos.writeInt(42);
+		dos.close();
+		f.close();
+		
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() < 200000);
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		SeekableInputStream sis = f.getSeekableStream("text");
+		DataInputStream dis = new DataInputStream(sis);
+		long middle = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (i == 50000) {
+				middle = sis.position();
+			}
+			Assert.assertEquals("line " + (i % 100), dis.readUTF());
+		}
+		Assert.assertEquals(-1, dis.read());
+		Assert.assertEquals(sis.position(), sis.size());
+		
+		sis.position(middle);
+		for (int i = 50000; i < 50200; i++) {
+			Assert.assertEquals("line " + (i % 100), dis.readUTF());
+		}
+		dis.close();
+		
+		dis = new DataInputStream(f.getReadStream("tiny"));
+		Assert.assertEquals(42, dis.readInt());
+		Assert.assertEquals(-1, dis.read());
+		dis.close();
+		
+		OutputStream os = f.getWriteStream("pending", true);
+		byte[] data = new byte[3 * MFCompressedOutputStream.CHUNKSIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 7);
+		}
+		os.write(data);
+		os.flush();
+		Assert.assertEquals(0, f.getSeekableStream("pending").size());
+		Assert.assertEquals(0, f.readStreamAsync("pending").get().length);
+		try {
+			f.getAppendStream("pending");
+			Assert.fail("Compressed stream appended to while being written");
+		} catch (IOException ioe) {
+		}
+		os.close();
+		Assert.assertTrue(Arrays.equals(data, f.readStreamAsync("pending").get()));
+		f.close();
+	}
+	
+	@Test
+	public void testMetrics() throws Exception {
+		MultiFileOptions options = new MultiFileOptions();
+		options.setMetricsEnabled(true);
+		MultiFile f = new MultiFile(TEST_FILE_NAME, options);
+		ObjectName name = f.getMetricsName();
+		Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		
+		OutputStream os = f.getWriteStream("stream");
+		os.write(new byte[10000]);
+		os.close();
+		SeekableInputStream sis = f.getSeekableStream("stream");
+		sis.position(5000);
+		Assert.assertEquals(5000, sis.read(new byte[5000]));
+		sis.close();
+		
+		MultiFileMetrics metrics = f.getMetrics();
+		Assert.assertTrue(metrics.isEnabled());
+		Assert.assertEquals(10000, metrics.getBytesWritten());
+		Assert.assertEquals(5000, metrics.getBytesRead());
+		Assert.assertEquals(1, metrics.getSeeks());
+		Assert.assertEquals(1, metrics.getDirectoryLookups());
+		Assert.assertTrue(metrics.getHeaderWrites() > 0);
+		Assert.assertTrue(metrics.getEndOfFileAllocations() > 0);
+		Assert.assertEquals(metrics.getBytesRead(), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BytesRead"));
+		f.close();
+		
+		Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		Assert.assertNull(f.getMetricsName());
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertFalse(f.getMetrics().isEnabled());
+		f.getReadStream("stream").close();
+		Assert.assertEquals(0, f.getMetrics().getDirectoryLookups());
+		f.close();
+	}
+	
+	@Test
+	public void testAsync() throws Exception {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		byte[] data = new byte[3 * 1024 * 1024 + 17];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		f.writeStreamAsync("big", ByteBuffer.wrap(data)).get();
+		f.writeStreamAsync("small", ByteBuffer.wrap(new byte[] { 1, 2, 3 })).get();
+		OutputStream os = f.getWriteStream("compressed", true);
+		os.write(data);
+		os.close();
+		
+		Assert.assertTrue(Arrays.equals(data, f.readStreamAsync("big").get()));
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, f.readStreamAsync("small").get()));
+		Assert.assertTrue(Arrays.equals(data, f.readStreamAsync("compressed").get()));
+		
+		ByteBuffer bb = ByteBuffer.allocate(100);
+		Assert.assertEquals(100, f.readAsync("big", 2000000, bb).get().intValue());
+		Assert.assertEquals(100, bb.position());
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(data[2000000 + i], bb.get(i));
+		}
+		bb.clear();
+		Assert.assertEquals(100, f.readAsync("compressed", 2000000, bb).get().intValue());
+		Assert.assertEquals(data[2000099], bb.get(99));
+		bb.clear();
+		Assert.assertEquals(-1, f.readAsync("big", data.length, bb).get().intValue());
+		f.close();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		DataInputStream dis = new DataInputStream(f.getReadStream("big"));
+		byte[] back = new byte[data.length];
+		dis.readFully(back);
+		Assert.assertTrue(Arrays.equals(data, back));
+		Assert.assertEquals(-1, dis.read());
+		dis.close();
+		f.close();
+	}
+	
+	@Test
+	public void testAsyncWritesAtClose() throws Exception {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+		for (int s = 0; s < 16; s++) {
+			byte[] data = new byte[4 * 1024 * 1024];
+			Arrays.fill(data, (byte) s);
+			writes.add(f.writeStreamAsync("async" + s, ByteBuffer.wrap(data)));
+		}
+		f.close();
+		for (CompletableFuture<Void> write : writes) {
+			write.get();
+		}
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(16, f.getStreamNames().size());
+		for (int s = 0; s < 16; s++) {
+			byte[] data = f.readStreamAsync("async" + s).get();
+			Assert.assertEquals(4 * 1024 * 1024, data.length);
+			Assert.assertEquals((byte) s, data[data.length - 1]);
+			f.deleteStream("async" + s);
+		}
+		f.close();
+		
+		// every block the writes took was published, and so freed with its stream
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() - f.allocator.getFreeSize() < 1024 * 1024);
+		f.close();
+	}
+	
+	@Test
+	public void testTransferTo() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		DataOutputStream dos = new DataOutputStream(f.getWriteStream("stream"));
+		for (int i = 0; i < 100000; i++) {
+			dos.writeInt(i);
+			if ((i % 1000) == 0) {
+				dos.flush();
+			}
+		}
+		dos.close();
+		OutputStream os = f.getWriteStream("tiny");
+		os.write(7);
+		os.close();
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Assert.assertEquals(400000, f.transferTo("stream", Channels.newChannel(baos)));
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		for (int i = 0; i < 100000; i++) {
+			Assert.assertEquals(i, dis.readInt());
+		}
+		Assert.assertEquals(-1, dis.read());
+		
+		baos.reset();
+		Assert.assertEquals(1, f.transferTo("tiny", Channels.newChannel(baos)));
+		Assert.assertEquals(7, baos.toByteArray()[0]);
+		f.close();
+	}
+	
+	@Test
+	public void testImportExport() throws IOException {
+		File source = new File("__test_tree__");
+		File target = new File("__test_export__");
+		deleteTree(source);
+		deleteTree(target);
+		try {
+			for (int d = 0; d < 5; d++) {
+				File dir = new File(source, "dir" + d);
+				dir.mkdirs();
+				for (int i = 0; i < 20; i++) {
+					DataOutputStream dos = new DataOutputStream(new FileOutputStream(new File(dir, "file" + i)));
+					for (int j = 0; j < i * 100; j++) {
+						dos.writeInt(d + i + j);
+					}
+					dos.close();
+				}
+			}
+			
+			MultiFile f = new MultiFile(TEST_FILE_NAME);
+			Assert.assertEquals(5 * 20 * 100 * 19 / 2 * 4, MultiFileTree.importTree(f, source, 4, null));
+			Assert.assertEquals(100, f.getStreamNames().size());
+			Assert.assertEquals(4 * 100 * 7, f.getSeekableStream("dir3/file7").size());
+			
+			MultiFileTree.exportTree(f, target, 4, null);
+			f.close();
+			
+			for (int d = 0; d < 5; d++) {
+				for (int i = 0; i < 20; i++) {
+					DataInputStream dis = new DataInputStream(new FileInputStream(new File(target, "dir" + d + File.separator + "file" + i)));
+					for (int j = 0; j < i * 100; j++) {
+						Assert.assertEquals(d + i + j, dis.readInt());
+					}
+					Assert.assertEquals(-1, dis.read());
+					dis.close();
+				}
+			}
+		} finally {
+			deleteTree(source);
+			deleteTree(target);
+		}
+	}
+	
+	@Test
+	public void testDirectoryCache() throws IOException {
+		for (int cacheSize : new int[] { 0, 64 }) {
+			setUp();
+			MultiFileOptions options = new MultiFileOptions();
+			options.setMetricsEnabled(true);
+			options.setDirectoryCacheSize(cacheSize);
+			MultiFile f = new MultiFile(TEST_FILE_NAME, options);
+			for (int i = 0; i < 2000; i++) {
+				DataOutputStream dos = new DataOutputStream(f.getWriteStream("stream" + i));
+				dos.writeInt(i);
+				dos.close();
+			}
+			for (int pass = 0; pass < 2; pass++) {
+				for (int i = 0; i < 2000; i += 3) {
+					DataInputStream dis = new DataInputStream(f.getReadStream("stream" + i));
+					Assert.assertEquals(i, dis.readInt());
+					dis.close();
+				}
+				f.deleteStream("stream" + (pass + 1));
+			}
+			Assert.assertEquals(1998, f.getStreamNames().size());
+			
+			MultiFileMetrics metrics = f.getMetrics();
+			if (cacheSize == 0) {
+				Assert.assertEquals(0, metrics.getDirectoryCacheHits() + metrics.getDirectoryCacheMisses());
+			} else {
+				Assert.assertTrue(metrics.getDirectoryCacheHits() > 0);
+				Assert.assertTrue(metrics.getDirectoryCacheMisses() > 0);
+			}
+			f.close();
+			
+			f = new MultiFile(TEST_FILE_NAME, options);
+			Assert.assertEquals(0, f.getMetrics().getDirectoryCacheMisses());
+			Assert.assertEquals(1998, f.getStreamNames().size());
+			f.close();
+		}
+	}
+	
+	@Test
+	public void testDeferredFree() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		byte[] data = new byte[4096];
+		OutputStream os = f.getWriteStream("small");
+		os.write(data, 0, 1000);
+		os.close();
+		for (int i = 0; i < 4; i++) {
+			os = f.getWriteStream("big" + i);
+			for (int j = 0; j < 64; j++) {
+				os.write(data);
+			}
+			os.close();
+		}
+		f.close();
+		
+		long length = new File(TEST_FILE_NAME).length();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		f.deleteStream("big1");
+		f.deleteStream("big3");
+		for (String streamName : new String[] { "big1", "big4" }) {
+			os = f.getWriteStream(streamName);
+			for (int j = 0; j < 64; j++) {
+				os.write(data);
+			}
+			os.close();
+		}
+		f.close();
+		
+		// the deleted streams' blocks are reused, at most one block more for the free list
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() <= length + 512);
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertEquals(5, f.getStreamNames().size());
+		InputStream is = f.getReadStream("big4");
+		Assert.assertEquals(64 * 4096, is.skip(Long.MAX_VALUE));
+		is.close();
+		f.close();
+	}
+	
+	@Test
+	public void testAppendStream() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int session = 0; session < 20; session++) {
+			OutputStream os = f.getAppendStream("log");
+			byte[] record = new byte[(session % 5 == 4) ? 5000 : 30];
+			Arrays.fill(record, (byte) session);
+			os.write(record);
+			expected.write(record);
+			os.close();
+			
+			if (session == 10) {
+				f.close();
+				f = new MultiFile(TEST_FILE_NAME);
+			}
+		}
+		
+		OutputStream os = f.getAppendStream("log");
+		try {
+			f.getAppendStream("log");
+			Assert.fail("Stream appended to twice at once");
+		} catch (IOException ioe) {
+		}
+		os.close();
+		
+		os = f.getWriteStream("packed", true);
+		os.write(new byte[100000]);
+		os.close();
+		try {
+			f.getAppendStream("packed");
+			Assert.fail("Compressed stream appended to");
+		} catch (IOException ioe) {
+		}
+		f.close();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		InputStream is = f.getReadStream("log");
+		byte[] data = new byte[expected.size()];
+		new DataInputStream(is).readFully(data);
+		Assert.assertEquals(-1, is.read());
+		is.close();
+		Assert.assertTrue(Arrays.equals(expected.toByteArray(), data));
+		f.close();
+	}
+	
+	@Test
+	public void testAppendInlineStream() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		OutputStream os = f.getWriteStream("note");
+		os.write(new byte[] { 1, 2, 3 });
+		os.close();
+		
+		os = f.getAppendStream("note");
+		os.write(new byte[] { 4, 5 });
+		try {
+			f.getAppendStream("note");
+			Assert.fail("Inline stream appended to twice at once");
+		} catch (IOException ioe) {
+		}
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, readAll(f, "note")));
+		os.flush();
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5 }, readAll(f, "note")));
+		os.write(6);
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5 }, readAll(f, "note")));
+		os.close();
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6 }, readAll(f, "note")));
+		
+		os = f.getWriteStream("gone");
+		os.write(new byte[] { 1, 2, 3 });
+		os.close();
+		long usedSize = new File(TEST_FILE_NAME).length() - f.allocator.getFreeSize();
+		os = f.getAppendStream("gone");
+		os.write(new byte[] { 4, 5 });
+		f.deleteStream("gone");
+		try {
+			os.close();
+			Assert.fail("Append published over a deleted stream");
+		} catch (IOException ioe) {
+		}
+		Assert.assertFalse(f.getStreamNames().contains("gone"));
+		Assert.assertEquals(usedSize, new File(TEST_FILE_NAME).length() - f.allocator.getFreeSize());
+		f.close();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6 }, readAll(f, "note")));
+		f.close();
+	}
+	
+	private static byte[] readAll(MultiFile f, String streamName) throws IOException {
+		InputStream is = f.getReadStream(streamName);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for (int b = is.read(); b >= 0; b = is.read()) {
+			baos.write(b);
+		}
+		is.close();
+		return baos.toByteArray();
+	}
+	
+	@Test
+	public void testCloneStream() throws IOException {
+		MultiFile f = new MultiFile(TEST_FILE_NAME);
+		byte[] data = new byte[300000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 251);
+		}
+		OutputStream os = f.getWriteStream("big");
+		os.write(data);
+		os.close();
+		os = f.getWriteStream("tiny");
+		os.write(7);
+		os.close();
+		f.close();
+		long length = new File(TEST_FILE_NAME).length();
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		f.cloneStream("big", "copy");
+		Assert.assertEquals(3, f.snapshot("snap/"));
+		Assert.assertEquals(6, f.getStreamNames().size());
+		
+		os = f.getAppendStream("copy");
+		os.write(data, 0, 10);
+		os.close();
+		f.deleteStream("big");
+		f.close();
+		
+		// only stream blocks were added
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() < length + 8 * 2048);
+		
+		f = new MultiFile(TEST_FILE_NAME);
+		byte[] read = new byte[data.length];
+		DataInputStream dis = new DataInputStream(f.getReadStream("snap/big"));
+		dis.readFully(read);
+		Assert.assertEquals(-1, dis.read());
+		dis.close();
+		Assert.assertTrue(Arrays.equals(data, read));
+		
+		InputStream is = f.getReadStream("copy");
+		Assert.assertEquals(data.length + 10, is.skip(Long.MAX_VALUE));
+		is.close();
+		is = f.getReadStream("snap/tiny");
+		Assert.assertEquals(7, is.read());
+		is.close();
+		
+		for (String streamName : new String[] { "copy", "snap/big", "snap/copy" }) {
+			f.deleteStream(streamName);
+		}
+		os = f.getWriteStream("again");
+		os.write(data);
+		os.close();
+		f.close();
+		
+		// the blocks were freed with their last reference, and reused
+		Assert.assertTrue(new File(TEST_FILE_NAME).length() < length + 8 * 2048);
+	}
+	
+	@Test
+	public void testCloneDuringRewrite() throws Exception {
+		final MultiFile f = new MultiFile(TEST_FILE_NAME);
+		OutputStream os = f.getWriteStream("source");
+		os.write(new byte[2000]);
+		os.close();
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Void> rewrites = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					for (int v = 1; v < 100; v++) {
+						byte[] version = new byte[2000 + v];
+						Arrays.fill(version, (byte) v);
+						OutputStream vos = f.getWriteStream("source");
+						vos.write(version);
+						vos.close();
+						f.compact(1);
+					}
+					return null;
+				}
+			});
+			
+			int clones = 0;
+			while (!rewrites.isDone()) {
+				f.cloneStream("source", "clone" + (clones++ % 10));
+			}
+			rewrites.get();
+			
+			// a version still being written is cloned as far as it was flushed
+			for (int c = 0; c < Math.min(clones, 10); c++) {
+				InputStream is = f.getReadStream("clone" + c);
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				int b;
+				while ((b = is.read()) >= 0) {
+					baos.write(b);
+				}
+				is.close();
+				byte[] clone = baos.toByteArray();
+				if (clone.length > 0) {
+					Assert.assertTrue(clone.length <= 2000 + clone[0]);
+					for (byte cb : clone) {
+						Assert.assertEquals(clone[0], cb);
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		f.close();
+	}
+	
+	@Test
+	public void testReadAhead() throws IOException {
+		for (int readAhead : new int[] { 0, MultiFileOptions.DEFAULT_READAHEAD }) {
+			setUp();
+			MultiFileOptions options = new MultiFileOptions();
+			options.setMetricsEnabled(true);
+			options.setReadAhead(readAhead);
+			MultiFile f = new MultiFile(TEST_FILE_NAME, options);
+			byte[] data = new byte[3000000];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) (i % 241);
+			}
+			OutputStream os = f.getWriteStream("stream");
+			os.write(data);
+			os.close();
+			
+			SeekableInputStream sis = f.getSeekableStream("stream");
+			for (int i = 0; i < 100; i++) {
+				sis.position((i * 7919L) % data.length);
+				sis.read();
+			}
+			long randomReadAhead = f.getMetrics().getReadAheadBytes();
+			
+			sis.position(0);
+			byte[] read = new byte[data.length];
+			int pos = 0;
+			int len;
+			while ((len = sis.read(read, pos, Math.min(4096, read.length - pos))) > 0) {
+				pos += len;
+			}
+			sis.close();
+			Assert.assertTrue(Arrays.equals(data, read));
+			
+			MultiFileMetrics metrics = f.getMetrics();
+			Assert.assertEquals(0, randomReadAhead);
+			if (readAhead == 0) {
+				Assert.assertEquals(0, metrics.getReadAheadBytes());
+			} else {
+				Assert.assertTrue(metrics.getReadAheadBytes() > data.length / 2);
+				Assert.assertTrue(metrics.getReadAheadBytes() <= data.length);
+				
+				os = f.getWriteStream("pieces");
+				OutputStream other = f.getWriteStream("other");
+				for (int i = 0; i < 100; i++) {
+					os.write(data, i * 1000, 1000);
+					other.write(data, 0, 1000);
+				}
+				os.close();
+				other.close();
+				MFInputStream mfis = (MFInputStream) f.getSeekableStream("pieces");
+				Assert.assertTrue(mfis.extents.size() > 1);
+				long firstExtent = mfis.extents.get(0).getLength();
+				for (long i = 0; i <= firstExtent; i++) {
+					Assert.assertEquals(data[(int) i], (byte) mfis.read());
+				}
+				Assert.assertTrue(mfis.readAheadWindow > 0);
+				
+				for (int i = 0; i < 20; i++) {
+					mfis.position(i * 3000);
+					mfis.read();
+				}
+				Assert.assertEquals(0, mfis.readAheadWindow);
+				mfis.position(0);
+				mfis.read(read, 0, 4096);
+				Assert.assertEquals(0, mfis.readAheadWindow);
+				mfis.read(read, 0, 4096);
+				Assert.assertEquals(0, mfis.readAheadWindow);
+				mfis.read(read, 0, 4096);
+				Assert.assertTrue(mfis.readAheadWindow > 0);
+				mfis.close();
+			}
+			f.close();
+		}
+	}
+	
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+}
\ No newline at end of file